@@ -35,10 +35,35 @@ public class AtomicReferenceArrayUpdater<V>
         shift = Integer.bitCount(unsafe.arrayIndexScale(arrayType) - 1);
     }
 
+    public V get(V[] array, int index)
+    {
+        assert index >= 0 && index < array.length;
+        return (V) unsafe.getObjectVolatile(array, offset(index));
+    }
+
+    public void set(V[] array, int index, V upd)
+    {
+        assert index >= 0 && index < array.length;
+        unsafe.putObjectVolatile(array, offset(index), upd);
+    }
+
+    // as AtomicReferenceArray.lazySet(): the write is ordered after any preceding write, but may not be seen at once
+    public void lazySet(V[] array, int index, V upd)
+    {
+        assert index >= 0 && index < array.length;
+        unsafe.putOrderedObject(array, offset(index), upd);
+    }
+
     public boolean compareAndSet(V[] array, int index, V exp, V upd)
     {
         assert index >= 0 && index < array.length;
-        return unsafe.compareAndSwapObject(array, offset + (index << shift), exp, upd);
+        return unsafe.compareAndSwapObject(array, offset(index), exp, upd);
+    }
+
+    // computed as a long, since index << shift overflows an int for an index of 2^29 or more
+    private long offset(int index)
+    {
+        return offset + ((long) index << shift);
     }
 
     static final Unsafe unsafe;
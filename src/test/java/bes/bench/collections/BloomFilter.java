@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter of 64-bit hashes, to which hashes may be added concurrently without locking. Each hash selects a
+ * single block of 512 bits (8 longs, so at most two cache lines), and sets PROBES bits within it, so that a query
+ * costs a single random memory access, in exchange for a slightly higher false positive rate than an unblocked filter
+ * of the same size. With 10 bits per hash, we expect around 1-2% false positives once filled to capacity.
+ *
+ * Bits are never cleared, so a hash cannot be removed; a filter can only be replaced by building a new one.
+ */
+final class BloomFilter
+{
+    private static final int BITS_PER_HASH = 10;
+    private static final int PROBES = 4;
+    // each block is 2^3 longs, and each probe selects one of its 2^9 bits
+    private static final int BLOCK_SHIFT = 3, PROBE_BITS = 9;
+    private static final int MAX_BLOCKS = 1 << 26;
+
+    private final AtomicLongArray bits;
+    private final int blockMask;
+    private final int capacity;
+
+    // a filter sized for capacity hashes
+    BloomFilter(int capacity)
+    {
+        long blocks = Math.max(1, ((long) capacity * BITS_PER_HASH) >> (BLOCK_SHIFT + 6));
+        blocks = Math.min(MAX_BLOCKS, Long.highestOneBit(blocks * 2 - 1));
+        this.bits = new AtomicLongArray((int) blocks << BLOCK_SHIFT);
+        this.blockMask = (int) blocks - 1;
+        this.capacity = capacity;
+    }
+
+    // the number of hashes we were sized for
+    int capacity()
+    {
+        return capacity;
+    }
+
+    void add(long hash)
+    {
+        long h = mix(hash);
+        int block = ((int) h & blockMask) << BLOCK_SHIFT;
+        for (int i = 1 ; i <= PROBES ; i++)
+        {
+            // the probes take their bits from the top of the mixed hash, and the block from the bottom
+            int bit = (int) (h >>> (64 - i * PROBE_BITS));
+            int index = block + ((bit >>> 6) & ((1 << BLOCK_SHIFT) - 1));
+            long mask = 1L << bit;
+            long cur = bits.get(index);
+            while ((cur & mask) == 0 && !bits.compareAndSet(index, cur, cur | mask))
+                cur = bits.get(index);
+        }
+    }
+
+    // false only if the hash has definitely never been added
+    boolean mightContain(long hash)
+    {
+        long h = mix(hash);
+        int block = ((int) h & blockMask) << BLOCK_SHIFT;
+        for (int i = 1 ; i <= PROBES ; i++)
+        {
+            int bit = (int) (h >>> (64 - i * PROBE_BITS));
+            int index = block + ((bit >>> 6) & ((1 << BLOCK_SHIFT) - 1));
+            if ((bits.get(index) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // the hashes of many keys have no entropy in their low 32 bits, so we mix all 64 bits (as murmur3's finalizer)
+    private static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * <p>An array of references that grows without ever copying its contents, with atomic get, set and compareAndSet of
+ * each slot. It has the shape of the index of a {@link NonBlockingHashOrderedMap}: an outer array of segments of
+ * 2^segmentShift slots each, addressed with a shift and a mask. A segment is only allocated on the first write to one
+ * of its slots, so that a slot whose segment has not yet been allocated simply reads as null.
+ *
+ * <p>Growth is lock-free. A segment is installed by a CAS of its slot in the outer array, so that racing writers agree
+ * on a single segment. The outer array is only replaced (by one at least twice as long) once every one of its slots
+ * holds a segment, so that no later CAS can install a segment in the array being replaced, and a copy of it loses
+ * nothing; to ensure this, growing the outer array first allocates any of its segments that are still missing.
+ * Only the outer array is ever copied, never a segment.
+ */
+public final class ConcurrentSegmentedArray<V>
+{
+    private static final AtomicReferenceArrayUpdater<Object> slotUpdater = new AtomicReferenceArrayUpdater<>(Object[].class);
+    private static final AtomicReferenceArrayUpdater<Object[]> segmentUpdater = new AtomicReferenceArrayUpdater<>(Object[][].class);
+    private static final AtomicReferenceFieldUpdater<ConcurrentSegmentedArray, Object[][]> segmentsUpdater = AtomicReferenceFieldUpdater.newUpdater(ConcurrentSegmentedArray.class, Object[][].class, "segments");
+
+    private final int segmentShift, segmentMask;
+    private volatile Object[][] segments = new Object[1][];
+
+    public ConcurrentSegmentedArray(int segmentShift)
+    {
+        if (segmentShift < 1 || segmentShift > 30)
+            throw new IllegalArgumentException();
+        this.segmentShift = segmentShift;
+        this.segmentMask = (1 << segmentShift) - 1;
+    }
+
+    // null if the slot has never been written
+    public V get(int index)
+    {
+        if (index < 0)
+            throw new IndexOutOfBoundsException();
+        Object[][] segments = this.segments;
+        int i = index >>> segmentShift;
+        if (i >= segments.length)
+            return null;
+        Object[] segment = segmentUpdater.get(segments, i);
+        return segment == null ? null : (V) slotUpdater.get(segment, index & segmentMask);
+    }
+
+    public void set(int index, V value)
+    {
+        slotUpdater.set(segment(index), index & segmentMask, value);
+    }
+
+    public void lazySet(int index, V value)
+    {
+        slotUpdater.lazySet(segment(index), index & segmentMask, value);
+    }
+
+    public boolean compareAndSet(int index, V exp, V upd)
+    {
+        return slotUpdater.compareAndSet(segment(index), index & segmentMask, exp, upd);
+    }
+
+    // the number of slots we may address without growing the outer array
+    public int capacity()
+    {
+        return (int) Math.min(Integer.MAX_VALUE, (long) segments.length << segmentShift);
+    }
+
+    // the segment containing the index, allocating it (and growing the outer array) if necessary
+    private Object[] segment(int index)
+    {
+        if (index < 0)
+            throw new IndexOutOfBoundsException();
+        int i = index >>> segmentShift;
+        while (true)
+        {
+            Object[][] segments = this.segments;
+            if (i >= segments.length)
+            {
+                grow(segments, i);
+                continue;
+            }
+            Object[] segment = segmentUpdater.get(segments, i);
+            if (segment != null)
+                return segment;
+            segment = new Object[1 << segmentShift];
+            if (segmentUpdater.compareAndSet(segments, i, null, segment))
+                return segment;
+        }
+    }
+
+    // replace the outer array with a copy long enough to hold segment i, once it holds every one of its segments
+    private void grow(Object[][] segments, int i)
+    {
+        for (int j = 0 ; j < segments.length ; j++)
+        {
+            if (segmentUpdater.get(segments, j) == null)
+                segmentUpdater.compareAndSet(segments, j, null, new Object[1 << segmentShift]);
+        }
+        int length = Math.max(segments.length * 2, Integer.highestOneBit(i) << 1);
+        segmentsUpdater.compareAndSet(this, segments, Arrays.copyOf(segments, length));
+    }
+}
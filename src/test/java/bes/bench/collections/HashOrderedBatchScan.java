@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Scans the range spanned by rangeSize keys from a random point in the map, summing its values, either with an
+ * Iterator, or in batches of batchSize entries drained into arrays (ARRAY) or passed to a visitor (VISITOR).
+ * A NonBlockingHashOrderedMap drains with its {@link NonBlockingHashOrderedMap.Cursor}; a ConcurrentSkipListMap has
+ * no equivalent, so fills the same batches from the Iterator of its subMap(), as a caller would have to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashOrderedBatchScan
+{
+
+    static enum Type
+    {
+        NBHOM, CSLM
+    }
+
+    static enum Method
+    {
+        ITERATOR, ARRAY, VISITOR
+    }
+
+    // the order NonBlockingHashOrderedMap keeps Long keys in
+    private static final Comparator<Long> HASH_ORDER = new Comparator<Long>()
+    {
+        public int compare(Long a, Long b)
+        {
+            int c = Integer.compare(a.hashCode(), b.hashCode());
+            return c != 0 ? c : a.compareTo(b);
+        }
+    };
+
+    @Param({"NBHOM", "CSLM"})
+    private String type;
+
+    @Param({"ITERATOR", "ARRAY", "VISITOR"})
+    private String method;
+
+    @Param({"1048576"})
+    private int size;
+
+    @Param({"16", "256", "4096", "65536"})
+    private int rangeSize;
+
+    @Param({"64"})
+    private int batchSize;
+
+    private NonBlockingHashOrderedMap<Long, Long> nbhom;
+    private ConcurrentSkipListMap<Long, Long> cslm;
+    // the keys in hash order, so that we can find the bounds of a range of rangeSize keys
+    private Long[] keys;
+    private Method m;
+
+    private Long[] keyBatch, valueBatch;
+    private final Summer summer = new Summer();
+
+    private static final class Summer implements NonBlockingHashOrderedMap.Visitor<Long, Long>
+    {
+        long sum;
+
+        public void visit(Long key, Long value)
+        {
+            sum += value;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        InsertOnlyOrderedMap<Long, Long> map;
+        switch (Type.valueOf(type))
+        {
+            case NBHOM:
+                map = nbhom = new NonBlockingHashOrderedMap<>();
+                break;
+            case CSLM:
+                cslm = new ConcurrentSkipListMap<>(HASH_ORDER);
+                map = new InsertOnlyOrderedMap.Adapter<>(cslm);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        keys = new Long[size];
+        for (int i = 0 ; i < size ; )
+        {
+            Long key = random.nextLong();
+            if (map.putIfAbsent(key, key) == null)
+                keys[i++] = key;
+        }
+        Arrays.sort(keys, HASH_ORDER);
+        m = Method.valueOf(method);
+        keyBatch = new Long[batchSize];
+        valueBatch = new Long[batchSize];
+        System.gc();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        nbhom = null;
+        cslm = null;
+        keys = null;
+    }
+
+    @Benchmark
+    public long scan()
+    {
+        int start = ThreadLocalRandom.current().nextInt(keys.length - rangeSize + 1);
+        Long lb = keys[start], ub = keys[start + rangeSize - 1];
+        if (nbhom != null)
+        {
+            switch (m)
+            {
+                case ITERATOR:
+                    return sum(nbhom.range(lb, ub).iterator());
+                case ARRAY:
+                    return sum(nbhom.range(lb, ub).cursor());
+                case VISITOR:
+                    return visit(nbhom.range(lb, ub).cursor());
+            }
+        }
+        else
+        {
+            Iterator<Map.Entry<Long, Long>> iter = cslm.subMap(lb, true, ub, true).entrySet().iterator();
+            switch (m)
+            {
+                case ITERATOR:
+                    return sum(iter);
+                case ARRAY:
+                    return sumBatches(iter);
+                case VISITOR:
+                    return visitBatches(iter);
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    private static long sum(Iterator<Map.Entry<Long, Long>> iter)
+    {
+        long sum = 0;
+        while (iter.hasNext())
+            sum += iter.next().getValue();
+        return sum;
+    }
+
+    private long sum(NonBlockingHashOrderedMap<Long, Long>.Cursor cursor)
+    {
+        long sum = 0;
+        int count;
+        do
+        {
+            count = cursor.drain(keyBatch, valueBatch, 0, batchSize);
+            for (int i = 0 ; i < count ; i++)
+                sum += valueBatch[i];
+        } while (count == batchSize);
+        return sum;
+    }
+
+    private long visit(NonBlockingHashOrderedMap<Long, Long>.Cursor cursor)
+    {
+        summer.sum = 0;
+        int count;
+        do
+        {
+            count = cursor.drain(summer, batchSize);
+        } while (count == batchSize);
+        return summer.sum;
+    }
+
+    private long sumBatches(Iterator<Map.Entry<Long, Long>> iter)
+    {
+        long sum = 0;
+        int count;
+        do
+        {
+            count = 0;
+            while (count < batchSize && iter.hasNext())
+            {
+                Map.Entry<Long, Long> e = iter.next();
+                keyBatch[count] = e.getKey();
+                valueBatch[count++] = e.getValue();
+            }
+            for (int i = 0 ; i < count ; i++)
+                sum += valueBatch[i];
+        } while (count == batchSize);
+        return sum;
+    }
+
+    private long visitBatches(Iterator<Map.Entry<Long, Long>> iter)
+    {
+        summer.sum = 0;
+        int count;
+        do
+        {
+            count = 0;
+            while (count < batchSize && iter.hasNext())
+            {
+                Map.Entry<Long, Long> e = iter.next();
+                summer.visit(e.getKey(), e.getValue());
+                count++;
+            }
+        } while (count == batchSize);
+        return summer.sum;
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("type", new String[] { "CSLM", "NBHOM" });
+        benchParams.put("method", new String[] { "ITERATOR", "ARRAY", "VISITOR" });
+        benchParams.put("size", new String[] { "1048576" });
+        benchParams.put("rangeSize", new String[] { "16", "256", "4096", "65536" });
+        benchParams.put("batchSize", new String[] { "64" });
+        for (String arg : args)
+        {
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedBatchScan.*")
+            .forks(jmhParams.get("forks"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -20,6 +20,7 @@ package bes.bench.collections;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -31,7 +32,10 @@ import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.ObjectName;
 
+import org.openjdk.jmh.annotations.AuxCounters;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
 import org.openjdk.jmh.annotations.Fork;
@@ -64,9 +68,22 @@ public class HashOrderedCollections
 
     static enum Type
     {
-        NBHOM, CSLM
+        NBHOM, BNBHOM, PNBHOM, NBHOLM, OHHOM, CSLM
     }
 
+    static enum InsertMode
+    {
+        // each key inserted individually, in the random order they were generated
+        SINGLE,
+        // each key inserted individually, but each batch of keys is first sorted into map order
+        SORTED,
+        // each sorted batch inserted with a single call to putAllSorted
+        BATCH
+    }
+
+    // report the heap retained by the map (excluding the keys/values themselves, which are shared) after warmup
+    private static final boolean reportMemory = Boolean.getBoolean("reportMemory");
+
     private static Long[] KEYS = new Long[Integer.parseInt(System.getProperty("keyCount", Integer.toString(1 << 24)))];
     static
     {
@@ -77,18 +94,98 @@ public class HashOrderedCollections
     @Param({"0.1"})
     private double readWriteRatio;
 
-    @Param({"NBHOM", "CSLM"})
+    // the proportion of operations that merge an increment into an existing key; the remainder are split by readWriteRatio
+    @Param({"0"})
+    private double updateRatio;
+
+    // the proportion of reads that look up a key that is (almost certainly) absent
+    @Param({"0"})
+    private double missRatio;
+
+    @Param({"NBHOM", "BNBHOM", "PNBHOM", "NBHOLM", "OHHOM", "CSLM"})
     private String type;
 
+    // the number of partitions of a PNBHOM; zero for the default
+    @Param({"0"})
+    private int partitions;
+
     @Param("1000000")
     private int warmup;
 
     @Param("100")
     private int batchSize;
 
+    @Param({"SINGLE"})
+    private String insertMode;
+
+    private boolean batchInserts;
+    // the keys this trial inserts: KEYS itself, or for the batched modes a copy sorted in batches
+    private Long[] keys;
+
+    private static final InsertOnlyOrderedMap.BiFunction<Long, Long, Long> SUM = new InsertOnlyOrderedMap.BiFunction<Long, Long, Long>()
+    {
+        public Long apply(Long a, Long b)
+        {
+            return a + b;
+        }
+    };
+    private static final Long ONE = 1L;
+
     private InsertOnlyOrderedMap<Long, Long> map;
     private final AtomicInteger nextInsert = new AtomicInteger();
 
+    // the metrics of an NBHOM after warmup, once enabled with -metrics, and until claimed by the first thread to report
+    private static final AtomicReference<HashOrderedMetrics> unreportedMetrics = new AtomicReference<>();
+    private static MapMetrics metricsBaseline;
+    private ObjectName metricsName;
+
+    // the hot path counters of an NBHOM over the iteration, if enabled with -metrics; reported per unit time, like the
+    // score, and by one thread only, as they are for the whole map. divide by the score for a per-operation figure
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class MapMetrics
+    {
+        public long predecessorLookups;
+        public long predecessorWalk;
+        public long indexRepairs;
+        public long insertCasFailures;
+        public long resizes;
+        public long resizeMicros;
+        public long resizeLag;
+
+        @TearDown(Level.Iteration)
+        public void report()
+        {
+            HashOrderedMetrics metrics = unreportedMetrics.getAndSet(null);
+            if (metrics == null)
+            {
+                predecessorLookups = predecessorWalk = indexRepairs = insertCasFailures = resizes = resizeMicros = resizeLag = 0;
+                return;
+            }
+            MapMetrics current = of(metrics), baseline = metricsBaseline;
+            predecessorLookups = current.predecessorLookups - baseline.predecessorLookups;
+            predecessorWalk = current.predecessorWalk - baseline.predecessorWalk;
+            indexRepairs = current.indexRepairs - baseline.indexRepairs;
+            insertCasFailures = current.insertCasFailures - baseline.insertCasFailures;
+            resizes = current.resizes - baseline.resizes;
+            resizeMicros = current.resizeMicros - baseline.resizeMicros;
+            resizeLag = current.resizeLag - baseline.resizeLag;
+        }
+
+        static MapMetrics of(HashOrderedMetrics metrics)
+        {
+            MapMetrics result = new MapMetrics();
+            result.predecessorLookups = metrics.getPredecessorLookups();
+            result.predecessorWalk = metrics.getPredecessorWalk();
+            result.indexRepairs = metrics.getIndexRepairs();
+            result.insertCasFailures = metrics.getInsertCasFailures();
+            result.resizes = metrics.getResizes();
+            result.resizeMicros = metrics.getResizeNanos() / 1000;
+            result.resizeLag = metrics.getResizeLag();
+            return result;
+        }
+    }
+
     @State(Scope.Thread)
     public static class ThreadState
     {
@@ -99,10 +196,46 @@ public class HashOrderedCollections
         int readsRemaining;
     }
 
+    @Setup(Level.Trial)
+    public void sortBatches()
+    {
+        InsertMode mode = InsertMode.valueOf(insertMode);
+        batchInserts = mode == InsertMode.BATCH;
+        keys = KEYS;
+        if (mode == InsertMode.SINGLE)
+            return;
+
+        Comparator<Long> comparator;
+        switch (Type.valueOf(type))
+        {
+            case NBHOM:
+            case BNBHOM:
+            case PNBHOM:
+            case OHHOM:
+                comparator = new Comparator<Long>()
+                {
+                    public int compare(Long o1, Long o2)
+                    {
+                        int c = Integer.compare(o1.hashCode(), o2.hashCode());
+                        return c != 0 ? c : o1.compareTo(o2);
+                    }
+                };
+                break;
+            default:
+                comparator = null;
+        }
+        // the batches inserted by the benchmark start at warmup, at multiples of batchSize; we sort a copy, since KEYS
+        // is shared by every trial in this JVM, and a later SINGLE trial must still see them in random order
+        keys = KEYS.clone();
+        for (int i = warmup ; i + batchSize <= keys.length ; i += batchSize)
+            Arrays.sort(keys, i, i + batchSize, comparator);
+    }
+
     @Setup(Level.Iteration)
     public void setup() throws InterruptedException
     {
         nextInsert.set(this.warmup);
+        long heapBefore = reportMemory ? usedHeap() : 0;
         map = newMap();
         final int processors = Runtime.getRuntime().availableProcessors();
         final int warmUp = this.warmup / processors;
@@ -116,7 +249,7 @@ public class HashOrderedCollections
                 {
                     for (int i = 0 ; i < warmUp ; i++)
                     {
-                        Long key = KEYS[offset + i];
+                        Long key = keys[offset + i];
                         map.putIfAbsent(key, key);
                     }
                 }
@@ -125,13 +258,40 @@ public class HashOrderedCollections
         exec.shutdown();
         exec.awaitTermination(1L, TimeUnit.DAYS);
         System.gc();
+        if (HashOrderedMetrics.ENABLED && map instanceof NonBlockingHashOrderedMap)
+        {
+            HashOrderedMetrics metrics = ((NonBlockingHashOrderedMap) map).metrics();
+            metricsBaseline = MapMetrics.of(metrics);
+            metricsName = metrics.register(type);
+            unreportedMetrics.set(metrics);
+        }
+        if (reportMemory)
+        {
+            System.out.printf("(%s: %.1f bytes/entry", type, (usedHeap() - heapBefore) / (double) map.size());
+            if (map instanceof OffHeapHashOrderedMap)
+                System.out.printf(", %.1f off-heap", ((OffHeapHashOrderedMap) map).offHeapSize() / (double) map.size());
+            System.out.print(") ");
+        }
+    }
+
+    private static long usedHeap()
+    {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
     }
 
     @TearDown(Level.Iteration)
-    public void teardown() throws InterruptedException
+    public void teardown()
     {
         nextInsert.set(this.warmup);
-        Thread.sleep(10);
+        if (metricsName != null)
+        {
+            HashOrderedMetrics.unregister(metricsName);
+            metricsName = null;
+        }
+        // JMH only tears down an iteration once every thread has finished it, so nothing is still using the map,
+        // as OffHeapHashOrderedMap.clear() requires (and asserts, when assertions are enabled)
         map.clear();
         map = null;
     }
@@ -144,26 +304,44 @@ public class HashOrderedCollections
                 return new InsertOnlyOrderedMap.Adapter<>(new ConcurrentSkipListMap<Long, Long>());
             case NBHOM:
                 return new NonBlockingHashOrderedMap<>();
+            case BNBHOM:
+                return new NonBlockingHashOrderedMap<>(true);
+            case PNBHOM:
+                return partitions == 0 ? new PartitionedHashOrderedMap<Long, Long>() : new PartitionedHashOrderedMap<Long, Long>(partitions);
+            case NBHOLM:
+                return new NonBlockingHashOrderedLongMap<>();
+            case OHHOM:
+                return new OffHeapHashOrderedMap<>(Serializer.LONG, Serializer.LONG);
         }
         throw new IllegalStateException();
     }
 
     @Benchmark
-    public void test(ThreadState state)
+    public void test(ThreadState state, MapMetrics metrics)
     {
         if (state.random == null)
             state.random = ThreadLocalRandom.current();
-        if (state.random.nextFloat() <= readWriteRatio)
+        if (updateRatio > 0 && state.random.nextFloat() < updateRatio)
         {
+            // updates are spread uniformly over the keys we have inserted so far
+            map.merge(keys[state.random.nextInt(Math.max(1, nextInsert.get() - batchSize))], ONE, SUM);
+        }
+        else if (state.random.nextFloat() <= readWriteRatio)
+        {
+            if (missRatio > 0 && state.random.nextFloat() < missRatio)
+            {
+                map.get(state.random.nextLong());
+                return;
+            }
             if (state.readsRemaining == 0)
             {
                 int modulus = Math.max(0, nextInsert.get() - batchSize);
-                state.readOffset = state.random.nextInt(KEYS.length) % modulus;
+                state.readOffset = state.random.nextInt(keys.length) % modulus;
                 state.readsRemaining = batchSize;
             }
             int index = state.readOffset++;
             state.readsRemaining--;
-            map.get(KEYS[index]);
+            map.get(keys[index]);
         }
         else
         {
@@ -171,17 +349,23 @@ public class HashOrderedCollections
             {
                 state.insertOffset = nextInsert.addAndGet(batchSize);
                 state.insertsRemaining = batchSize;
+                // we insert the whole batch up front, but still count each key as an operation
+                if (batchInserts)
+                    map.putAllSorted(keys, keys, state.insertOffset, batchSize);
             }
             int index = state.insertOffset++;
             state.insertsRemaining--;
-            Long key = KEYS[index];
-            map.putIfAbsent(key, key);
+            if (!batchInserts)
+            {
+                Long key = keys[index];
+                map.putIfAbsent(key, key);
+            }
         }
     }
 
     public static void main(String[] args) throws RunnerException, InterruptedException
     {
-        boolean addPerf = false, printGc = false;
+        boolean addPerf = false, printGc = false, printMemory = false, printMetrics = false, scaling = false, misses = false;
         List<String> vmArgs = new ArrayList<>();
         Map<String, Integer> jmhParams = new HashMap<String, Integer>();
         jmhParams.put("forks", 1);
@@ -191,10 +375,14 @@ public class HashOrderedCollections
         jmhParams.put("measurements", 10);
         jmhParams.put("measurementLength", 1);
         Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
-        benchParams.put("type", new String[] { "CSLM", "NBHOM" });
+        benchParams.put("type", new String[] { "CSLM", "NBHOM", "BNBHOM", "PNBHOM", "NBHOLM", "OHHOM" });
         benchParams.put("readWriteRatio", new String[] { "0.9", "0.5", "0.1", "0" });
+        benchParams.put("updateRatio", new String[] { "0" });
+        benchParams.put("missRatio", new String[] { "0" });
         benchParams.put("warmup", new String[] { "1000000" });
         benchParams.put("batchSize", new String[] { "100" });
+        benchParams.put("insertMode", new String[] { "SINGLE" });
+        benchParams.put("partitions", new String[] { "0" });
         for (String arg : args)
         {
             if (arg.equals("-perf"))
@@ -207,6 +395,28 @@ public class HashOrderedCollections
                 printGc = true;
                 continue;
             }
+            if (arg.equals("-mem"))
+            {
+                printMemory = true;
+                continue;
+            }
+            if (arg.equals("-metrics"))
+            {
+                printMetrics = true;
+                continue;
+            }
+            if (arg.equals("-scaling"))
+            {
+                // a write-only mix, run at every power of two thread count up to threads, to show write scalability
+                scaling = true;
+                continue;
+            }
+            if (arg.equals("-misses"))
+            {
+                // a read-heavy mix, where most reads are of absent keys, to show the benefit of a bloom filter
+                misses = true;
+                continue;
+            }
             if (arg.startsWith("-"))
             {
                 vmArgs.add(arg);
@@ -226,10 +436,18 @@ public class HashOrderedCollections
         if (vmArgs.isEmpty())
             vmArgs.add("-Xmx2G");
 
+        if (scaling)
+            benchParams.put("readWriteRatio", new String[] { "0" });
+
+        if (misses)
+        {
+            benchParams.put("readWriteRatio", new String[] { "0.9" });
+            benchParams.put("missRatio", new String[] { "0.9" });
+        }
+
         ChainedOptionsBuilder builder = new OptionsBuilder()
             .include(".*HashOrderedCollections.*")
             .forks(jmhParams.get("forks"))
-            .threads(jmhParams.get("threads"))
             .warmupIterations(jmhParams.get("warmups"))
             .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
             .measurementIterations(jmhParams.get("measurements"))
@@ -240,8 +458,17 @@ public class HashOrderedCollections
         {
             vmArgs.add("-XX:+PrintGC");
             vmArgs.add("-XX:+PrintGCTimeStamps");
+            // report gc count and time for each iteration alongside its score
+            builder.addProfiler(org.openjdk.jmh.profile.GCProfiler.class);
         }
 
+        if (printMemory)
+            vmArgs.add("-DreportMemory=true");
+
+        // report the NBHOM hot path counters alongside the score, and expose them over JMX during the run
+        if (printMetrics)
+            vmArgs.add("-DhashOrderedMetrics=true");
+
         builder.jvmArgsAppend(vmArgs.toArray(new String[0]));
 
         if (addPerf)
@@ -254,6 +481,13 @@ public class HashOrderedCollections
             System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
             builder.param(e.getKey(), e.getValue());
         }
-        new Runner(builder.build()).run();
+
+        int maxThreads = jmhParams.get("threads");
+        for (int threads = scaling ? 1 : maxThreads ; ; threads = Math.min(maxThreads, threads * 2))
+        {
+            new Runner(builder.threads(threads).build()).run();
+            if (threads == maxThreads)
+                break;
+        }
     }
 }
@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Counts the entries in the range spanned by rangeSize keys from a random point in the map, comparing
+ * NonBlockingHashOrderedMap.count() with the subMap().size() of a ConcurrentSkipListMap (via its Adapter). Also
+ * measures the estimates a NonBlockingHashOrderedMap makes from the same counts, of a key's rank and of the point
+ * that splits a range in two; for a ConcurrentSkipListMap these fall back to counting.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashOrderedCount
+{
+
+    static enum Type
+    {
+        NBHOM, CSLM
+    }
+
+    // the order NonBlockingHashOrderedMap keeps Long keys in
+    private static final Comparator<Long> HASH_ORDER = new Comparator<Long>()
+    {
+        public int compare(Long a, Long b)
+        {
+            int c = Integer.compare(a.hashCode(), b.hashCode());
+            return c != 0 ? c : a.compareTo(b);
+        }
+    };
+
+    @Param({"NBHOM", "CSLM"})
+    private String type;
+
+    @Param({"1048576"})
+    private int size;
+
+    @Param({"1024", "65536", "1048576"})
+    private int rangeSize;
+
+    private MutableOrderedMap<Long, Long> map;
+    // null unless type is NBHOM
+    private NonBlockingHashOrderedMap<Long, Long> nbhom;
+    // the keys in hash order, so that we can find the bounds of a range of rangeSize keys
+    private Long[] keys;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        switch (Type.valueOf(type))
+        {
+            case NBHOM:
+                map = nbhom = new NonBlockingHashOrderedMap<>(false, true);
+                break;
+            case CSLM:
+                map = new InsertOnlyOrderedMap.Adapter<>(new ConcurrentSkipListMap<Long, Long>(HASH_ORDER));
+                break;
+        }
+        keys = new Long[size];
+        for (int i = 0 ; i < size ; i++)
+        {
+            keys[i] = random.nextLong();
+            map.putIfAbsent(keys[i], keys[i]);
+        }
+        Arrays.sort(keys, HASH_ORDER);
+        System.gc();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        map = nbhom = null;
+        keys = null;
+    }
+
+    @Benchmark
+    public int count()
+    {
+        int start = ThreadLocalRandom.current().nextInt(keys.length - rangeSize + 1);
+        return map.count(keys[start], keys[start + rangeSize - 1]);
+    }
+
+    @Benchmark
+    public int rank()
+    {
+        Long key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        return nbhom != null ? nbhom.rank(key) : map.count(null, key);
+    }
+
+    @Benchmark
+    public Long splitPoint()
+    {
+        int start = ThreadLocalRandom.current().nextInt(keys.length - rangeSize + 1);
+        Long lb = keys[start], ub = keys[start + rangeSize - 1];
+        if (nbhom != null)
+            return nbhom.splitPoint(lb, ub);
+        // the best we can do without counts is to count the range, and walk to its middle
+        int half = map.count(lb, ub) / 2;
+        for (Map.Entry<Long, Long> e : map.range(lb, ub))
+            if (half-- == 0)
+                return e.getKey();
+        return null;
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("type", new String[] { "CSLM", "NBHOM" });
+        benchParams.put("size", new String[] { "1048576" });
+        benchParams.put("rangeSize", new String[] { "1024", "65536", "1048576" });
+        for (String arg : args)
+        {
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedCount.*")
+            .forks(jmhParams.get("forks"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.Adler32;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+import static bes.bench.collections.AtomicReferenceArrayUpdater.unsafe;
+
+/**
+ * <p>An immutable file of entries in the order of a {@link NonBlockingHashOrderedMap}, written by {@link #write} from
+ * the range of any map in that order (or of another such file), and read by memory-mapping the whole file.
+ *
+ * <p>The file is a sequence of blocks, each laid out as [compressed length:4][length:4][checksum:4][compressed bytes],
+ * where the checksum is the Adler32 of the compressed bytes, and they decompress with LZ4 to a run of entries laid out
+ * as [hash:8][key size:4][value size:4][key][value]. Entries are added to a block until the next would take it past
+ * the block size, so every block but the last is (nearly) full, and an entry larger than the block size is given
+ * a block of its own. The blocks are followed by a sparse index of [first hash:8][offset:8] for each block, and
+ * a footer of [index offset:8][block count:4][entry count:4][max length:4][max compressed length:4].
+ *
+ * <p>A lookup binary searches the index (which we copy on heap) for the last block starting before its hash, then
+ * decompresses and scans forward from there, only deserializing keys with the same hash as the key it is looking for.
+ * Each thread keeps the last block it decompressed for lookups, and each range its current block.
+ *
+ * <p>Since we map the whole file at once, it may not exceed 2GiB. The mapping is released only once the file is
+ * collected, so the file should not be truncated while any instance reading it is reachable.
+ */
+public class HashOrderedFile<K extends Comparable<? super K>, V>
+{
+    private static final int COMPRESSED_LENGTH = 0, LENGTH = 4, CHECKSUM = 8, BLOCK_HEADER_SIZE = 12;
+    static final int HASH = 0, KEY_SIZE = 8, VALUE_SIZE = 12, ENTRY_HEADER_SIZE = 16;
+    private static final int INDEX_ENTRY_SIZE = 16, FOOTER_SIZE = 24;
+
+    private static final long BYTE_ARRAY_OFFSET = unsafe.arrayBaseOffset(byte[].class);
+    private static final long BUFFER_ADDRESS;
+    static
+    {
+        try
+        {
+            BUFFER_ADDRESS = unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        }
+        catch (Exception e)
+        {
+            throw new AssertionError(e);
+        }
+    }
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    // we hold a reference to the mapping, so that it is not unmapped while we use its address
+    private final MappedByteBuffer buffer;
+    private final long address;
+    private final long[] firstHashes;
+    private final long[] offsets;
+    private final int size;
+    private final int maxLength, maxCompressedLength;
+
+    private final ThreadLocal<Block> blocks = new ThreadLocal<Block>()
+    {
+        protected Block initialValue()
+        {
+            return new Block();
+        }
+    };
+
+    public HashOrderedFile(File file, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException
+    {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < FOOTER_SIZE || length > Integer.MAX_VALUE)
+                throw new IOException(file + " is not a valid file (" + length + " bytes)");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            address = unsafe.getLong(buffer, BUFFER_ADDRESS);
+
+            long footer = address + length - FOOTER_SIZE;
+            long indexOffset = unsafe.getLong(footer);
+            int blockCount = unsafe.getInt(footer + 8);
+            size = unsafe.getInt(footer + 12);
+            maxLength = unsafe.getInt(footer + 16);
+            maxCompressedLength = unsafe.getInt(footer + 20);
+            if (indexOffset < 0 || blockCount < 0 || indexOffset + (long) blockCount * INDEX_ENTRY_SIZE != length - FOOTER_SIZE)
+                throw new IOException(file + " has a corrupt footer");
+
+            firstHashes = new long[blockCount];
+            offsets = new long[blockCount];
+            for (int i = 0 ; i < blockCount ; i++)
+            {
+                long entry = address + indexOffset + (long) i * INDEX_ENTRY_SIZE;
+                firstHashes[i] = unsafe.getLong(entry);
+                offsets[i] = unsafe.getLong(entry + 8);
+            }
+        }
+    }
+
+    /**
+     * Writes the entries, which must be in the order of a NonBlockingHashOrderedMap (such as the range of one), to
+     * the file, in blocks of (uncompressed) blockSize bytes; returns the length of the file. The entries of a map
+     * that is still being modified may have their value nulled by a concurrent removal, so we read each value once,
+     * and skip any entry whose value is null.
+     */
+    public static <K extends Comparable<? super K>, V> long write(Iterable<Map.Entry<K, V>> entries, File file, Serializer<K> keySerializer, Serializer<V> valueSerializer, int blockSize) throws IOException
+    {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("blockSize must be positive");
+        LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+        Writer writer = new Writer(compressor, blockSize);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16))
+        {
+            long prevHash = 0;
+            K prevKey = null;
+            for (Map.Entry<K, V> e : entries)
+            {
+                V value = e.getValue();
+                if (value == null)
+                    continue;
+                K key = e.getKey();
+                long hash = NonBlockingHashOrderedMap.hash(e);
+                if (prevKey != null && (hash < prevHash || (hash == prevHash && prevKey.compareTo(key) >= 0)))
+                    throw new IllegalArgumentException("Entries are not in hash order: " + key + " follows " + prevKey);
+                prevHash = hash;
+                prevKey = key;
+
+                int keySize = keySerializer.serializedSize(key);
+                int valueSize = valueSerializer.serializedSize(value);
+                int entrySize = ENTRY_HEADER_SIZE + keySize + valueSize;
+                if (writer.length > 0 && writer.length + entrySize > blockSize)
+                    writer.flush(out);
+                if (writer.length == 0)
+                    writer.startBlock(hash, entrySize);
+
+                long offset = BYTE_ARRAY_OFFSET + writer.length;
+                byte[] block = writer.block;
+                unsafe.putLong(block, offset + HASH, hash);
+                unsafe.putInt(block, offset + KEY_SIZE, keySize);
+                unsafe.putInt(block, offset + VALUE_SIZE, valueSize);
+                keySerializer.serialize(key, block, offset + ENTRY_HEADER_SIZE);
+                valueSerializer.serialize(value, block, offset + ENTRY_HEADER_SIZE + keySize);
+                writer.length += entrySize;
+                writer.entryCount++;
+            }
+            if (writer.length > 0)
+                writer.flush(out);
+            writer.finish(out);
+            return writer.position;
+        }
+    }
+
+    // the state of an in-progress write that does not depend on the types of the entries
+    private static final class Writer
+    {
+        final LZ4Compressor compressor;
+        final Adler32 checksum = new Adler32();
+        byte[] block, compressed;
+
+        // the current block: its length so far
+        int length;
+        // the whole file: the position of the next block, and the index and footer
+        long position;
+        long[] firstHashes = new long[16];
+        long[] offsets = new long[16];
+        int blockCount, entryCount, maxLength, maxCompressedLength;
+
+        Writer(LZ4Compressor compressor, int blockSize)
+        {
+            this.compressor = compressor;
+            this.block = new byte[blockSize];
+            this.compressed = new byte[BLOCK_HEADER_SIZE + compressor.maxCompressedLength(blockSize)];
+        }
+
+        // begin a new block with an entry of the given hash and size
+        void startBlock(long hash, int entrySize)
+        {
+            if (entrySize > block.length)
+            {
+                block = new byte[entrySize];
+                compressed = new byte[BLOCK_HEADER_SIZE + compressor.maxCompressedLength(entrySize)];
+            }
+            if (blockCount == firstHashes.length)
+            {
+                firstHashes = Arrays.copyOf(firstHashes, blockCount * 2);
+                offsets = Arrays.copyOf(offsets, blockCount * 2);
+            }
+            firstHashes[blockCount] = hash;
+            offsets[blockCount] = position;
+            blockCount++;
+        }
+
+        void flush(OutputStream out) throws IOException
+        {
+            int compressedLength = compressor.compress(block, 0, length, compressed, BLOCK_HEADER_SIZE, compressed.length - BLOCK_HEADER_SIZE);
+            checksum.reset();
+            checksum.update(compressed, BLOCK_HEADER_SIZE, compressedLength);
+            unsafe.putInt(compressed, BYTE_ARRAY_OFFSET + COMPRESSED_LENGTH, compressedLength);
+            unsafe.putInt(compressed, BYTE_ARRAY_OFFSET + LENGTH, length);
+            unsafe.putInt(compressed, BYTE_ARRAY_OFFSET + CHECKSUM, (int) checksum.getValue());
+            out.write(compressed, 0, BLOCK_HEADER_SIZE + compressedLength);
+            position += BLOCK_HEADER_SIZE + compressedLength;
+            maxLength = Math.max(maxLength, length);
+            maxCompressedLength = Math.max(maxCompressedLength, compressedLength);
+            length = 0;
+        }
+
+        void finish(OutputStream out) throws IOException
+        {
+            byte[] tail = new byte[blockCount * INDEX_ENTRY_SIZE + FOOTER_SIZE];
+            for (int i = 0 ; i < blockCount ; i++)
+            {
+                unsafe.putLong(tail, BYTE_ARRAY_OFFSET + i * INDEX_ENTRY_SIZE, firstHashes[i]);
+                unsafe.putLong(tail, BYTE_ARRAY_OFFSET + i * INDEX_ENTRY_SIZE + 8, offsets[i]);
+            }
+            long footer = BYTE_ARRAY_OFFSET + blockCount * INDEX_ENTRY_SIZE;
+            unsafe.putLong(tail, footer, position);
+            unsafe.putInt(tail, footer + 8, blockCount);
+            unsafe.putInt(tail, footer + 12, entryCount);
+            unsafe.putInt(tail, footer + 16, maxLength);
+            unsafe.putInt(tail, footer + 20, maxCompressedLength);
+            out.write(tail);
+            position += tail.length;
+        }
+    }
+
+    // a decompressed block, and the buffers to decompress it with
+    private final class Block
+    {
+        final byte[] compressed = new byte[maxCompressedLength];
+        final byte[] data = new byte[maxLength];
+        final Adler32 checksum = new Adler32();
+        int index = -1;
+        int length;
+
+        void load(int index)
+        {
+            if (this.index == index)
+                return;
+            long block = address + offsets[index];
+            int compressedLength = unsafe.getInt(block + COMPRESSED_LENGTH);
+            int length = unsafe.getInt(block + LENGTH);
+            unsafe.copyMemory(null, block + BLOCK_HEADER_SIZE, compressed, BYTE_ARRAY_OFFSET, compressedLength);
+            checksum.reset();
+            checksum.update(compressed, 0, compressedLength);
+            if ((int) checksum.getValue() != unsafe.getInt(block + CHECKSUM))
+                throw new IllegalStateException("Checksum mismatch in block at offset " + offsets[index]);
+            decompressor.decompress(compressed, 0, data, 0, length);
+            this.index = index;
+            this.length = length;
+        }
+
+        long hash(int position)
+        {
+            return unsafe.getLong(data, BYTE_ARRAY_OFFSET + position + HASH);
+        }
+
+        int keySize(int position)
+        {
+            return unsafe.getInt(data, BYTE_ARRAY_OFFSET + position + KEY_SIZE);
+        }
+
+        int valueSize(int position)
+        {
+            return unsafe.getInt(data, BYTE_ARRAY_OFFSET + position + VALUE_SIZE);
+        }
+
+        int entrySize(int position)
+        {
+            return ENTRY_HEADER_SIZE + keySize(position) + valueSize(position);
+        }
+
+        K key(int position)
+        {
+            return keySerializer.deserialize(data, BYTE_ARRAY_OFFSET + position + ENTRY_HEADER_SIZE, keySize(position));
+        }
+
+        V value(int position)
+        {
+            int keySize = keySize(position);
+            return valueSerializer.deserialize(data, BYTE_ARRAY_OFFSET + position + ENTRY_HEADER_SIZE + keySize, valueSize(position));
+        }
+
+        // compares the entry at position with hash/key; the key is only deserialized if the hashes are equal
+        int compareTo(int position, long hash, K key)
+        {
+            int c = Long.compare(hash(position), hash);
+            return c != 0 ? c : key(position).compareTo(key);
+        }
+    }
+
+    // the last block whose first hash is less than hash, or the first block if there is none
+    private int blockFor(long hash)
+    {
+        int lb = 0, ub = firstHashes.length;
+        while (lb < ub)
+        {
+            int mid = (lb + ub) >>> 1;
+            if (firstHashes[mid] < hash)
+                lb = mid + 1;
+            else
+                ub = mid;
+        }
+        return Math.max(0, lb - 1);
+    }
+
+    public V get(K key)
+    {
+        long hash = NonBlockingHashOrderedMap.hash(key);
+        Block block = blocks.get();
+        for (int i = blockFor(hash) ; i < firstHashes.length ; i++)
+        {
+            block.load(i);
+            for (int position = 0 ; position < block.length ; position += block.entrySize(position))
+            {
+                int c = block.compareTo(position, hash, key);
+                if (c == 0)
+                    return block.value(position);
+                if (c > 0)
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    // the length of the file
+    public long length()
+    {
+        return buffer.capacity();
+    }
+
+    // bounds are always inclusive; since our entries are serialized, each entry returned is a fresh copy
+    public Iterable<Map.Entry<K, V>> range(final K lb, final K ub)
+    {
+        final long lbHash = lb == null ? Long.MIN_VALUE : NonBlockingHashOrderedMap.hash(lb);
+        final long ubHash = ub == null ? Long.MAX_VALUE : NonBlockingHashOrderedMap.hash(ub);
+        return new Iterable<Map.Entry<K, V>>()
+        {
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                return new Iterator<Map.Entry<K, V>>()
+                {
+                    final Block block = new Block();
+                    int next = blockFor(lbHash);
+                    // the position of the next entry in the current block, or -1 once we pass ub
+                    int position = block.length;
+                    boolean skipping = lb != null;
+
+                    public boolean hasNext()
+                    {
+                        while (position >= 0)
+                        {
+                            if (position == block.length)
+                            {
+                                if (next == firstHashes.length)
+                                    return false;
+                                block.load(next++);
+                                position = 0;
+                                continue;
+                            }
+                            if (skipping && block.compareTo(position, lbHash, lb) < 0)
+                            {
+                                position += block.entrySize(position);
+                                continue;
+                            }
+                            skipping = false;
+                            if (ub != null && block.compareTo(position, ubHash, ub) > 0)
+                                position = -1;
+                            return position >= 0;
+                        }
+                        return false;
+                    }
+
+                    public Map.Entry<K, V> next()
+                    {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        Map.Entry<K, V> r = new AbstractMap.SimpleImmutableEntry<>(block.key(position), block.value(position));
+                        position += block.entrySize(position);
+                        return r;
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+}
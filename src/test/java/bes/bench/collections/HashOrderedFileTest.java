@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashOrderedFileTest
+{
+
+    // a map's entries may be removed while it is flushed, nulling the value of an entry its range has already returned
+    @Test
+    public void testWriteSkipsEntriesRemovedDuringFlush() throws IOException
+    {
+        final NonBlockingHashOrderedMap<Long, Long> map = new NonBlockingHashOrderedMap<>();
+        final Random random = new Random(0);
+        for (int i = 0 ; i < 100000 ; i++)
+        {
+            long key = random.nextLong();
+            map.putIfAbsent(key, key);
+        }
+
+        // remove a share of the entries just after the range returns them, and before they are written
+        Iterable<Map.Entry<Long, Long>> removing = new Iterable<Map.Entry<Long, Long>>()
+        {
+            public Iterator<Map.Entry<Long, Long>> iterator()
+            {
+                final Iterator<Map.Entry<Long, Long>> iter = map.range(null, null).iterator();
+                return new Iterator<Map.Entry<Long, Long>>()
+                {
+                    public boolean hasNext()
+                    {
+                        return iter.hasNext();
+                    }
+
+                    public Map.Entry<Long, Long> next()
+                    {
+                        Map.Entry<Long, Long> next = iter.next();
+                        if (random.nextInt(10) == 0)
+                            map.remove(next.getKey());
+                        return next;
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+
+        File file = File.createTempFile("HashOrderedFileTest", ".db");
+        try
+        {
+            HashOrderedFile.write(removing, file, Serializer.LONG, Serializer.LONG, 4096);
+            HashOrderedFile<Long, Long> flushed = new HashOrderedFile<>(file, Serializer.LONG, Serializer.LONG);
+            Assert.assertEquals(map.size(), flushed.size());
+            Iterator<Map.Entry<Long, Long>> expect = map.range(null, null).iterator();
+            for (Map.Entry<Long, Long> e : flushed.range(null, null))
+            {
+                Map.Entry<Long, Long> next = expect.next();
+                Assert.assertEquals(next.getKey(), e.getKey());
+                Assert.assertEquals(next.getValue(), e.getValue());
+            }
+            Assert.assertFalse(expect.hasNext());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+}
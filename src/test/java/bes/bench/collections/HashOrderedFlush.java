@@ -0,0 +1,230 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Flushes a NonBlockingHashOrderedMap (or rewrites a HashOrderedFile flushed from it) to a HashOrderedFile, printing
+ * the throughput in MB/s of both the (uncompressed) entries flushed and the file written after each iteration; and
+ * compares the latency of get() and of reading a range of rangeSize keys from the memory-mapped file with the map.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashOrderedFlush
+{
+
+    static enum Source
+    {
+        MAP, FILE
+    }
+
+    // the order NonBlockingHashOrderedMap keeps Long keys in
+    private static final Comparator<Long> HASH_ORDER = new Comparator<Long>()
+    {
+        public int compare(Long a, Long b)
+        {
+            int c = Integer.compare(a.hashCode(), b.hashCode());
+            return c != 0 ? c : a.compareTo(b);
+        }
+    };
+
+    @Param({"MAP", "FILE"})
+    private String source;
+
+    @Param({"1048576"})
+    private int size;
+
+    @Param({"4096", "65536"})
+    private int blockSize;
+
+    @Param({"64"})
+    private int rangeSize;
+
+    private NonBlockingHashOrderedMap<Long, Long> map;
+    private HashOrderedFile<Long, Long> file;
+    private File sourceFile, flushFile;
+    private boolean fromFile;
+    // the keys in hash order, so that we can find the bounds of a range of rangeSize keys
+    private Long[] keys;
+
+    // the bytes flushed (uncompressed) and written, and the time spent doing so, since the iteration began
+    private long flushedBytes, writtenBytes, flushNanos;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        keys = new Long[size];
+        map = new NonBlockingHashOrderedMap<>();
+        for (int i = 0 ; i < size ; i++)
+        {
+            keys[i] = random.nextLong();
+            map.putIfAbsent(keys[i], keys[i]);
+        }
+        Arrays.sort(keys, HASH_ORDER);
+
+        sourceFile = File.createTempFile("HashOrderedFlush", ".db");
+        flushFile = File.createTempFile("HashOrderedFlush", ".db");
+        sourceFile.deleteOnExit();
+        flushFile.deleteOnExit();
+        HashOrderedFile.write(map.range(null, null), sourceFile, Serializer.LONG, Serializer.LONG, blockSize);
+        file = new HashOrderedFile<>(sourceFile, Serializer.LONG, Serializer.LONG);
+        fromFile = Source.valueOf(source) == Source.FILE;
+        System.gc();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report()
+    {
+        if (flushNanos > 0)
+        {
+            double seconds = flushNanos / 1e9;
+            System.out.printf("(%.1fMB/s flushed, %.1fMB/s written) ", flushedBytes / seconds / (1 << 20), writtenBytes / seconds / (1 << 20));
+        }
+        flushedBytes = writtenBytes = flushNanos = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        map = null;
+        file = null;
+        keys = null;
+        sourceFile.delete();
+        flushFile.delete();
+    }
+
+    @Benchmark
+    public long flush() throws IOException
+    {
+        long start = System.nanoTime();
+        long length = HashOrderedFile.write(fromFile ? file.range(null, null) : map.range(null, null), flushFile, Serializer.LONG, Serializer.LONG, blockSize);
+        flushNanos += System.nanoTime() - start;
+        // each entry is serialized with a Long key and value
+        flushedBytes += (long) size * (HashOrderedFile.ENTRY_HEADER_SIZE + 8 + 8);
+        writtenBytes += length;
+        return length;
+    }
+
+    @Benchmark
+    public Long get()
+    {
+        Long key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        return fromFile ? file.get(key) : map.get(key);
+    }
+
+    @Benchmark
+    public long range()
+    {
+        int start = ThreadLocalRandom.current().nextInt(keys.length - rangeSize + 1);
+        Long lb = keys[start], ub = keys[start + rangeSize - 1];
+        long sum = 0;
+        for (Map.Entry<Long, Long> e : fromFile ? file.range(lb, ub) : map.range(lb, ub))
+            sum += e.getValue();
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("source", new String[] { "MAP", "FILE" });
+        benchParams.put("size", new String[] { "1048576" });
+        benchParams.put("blockSize", new String[] { "4096", "65536" });
+        benchParams.put("rangeSize", new String[] { "64" });
+        for (String arg : args)
+        {
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedFlush.*")
+            .forks(jmhParams.get("forks"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
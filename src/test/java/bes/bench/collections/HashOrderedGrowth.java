@@ -0,0 +1,184 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Samples the latency of individual puts and gets against a map that starts empty at each iteration, and grows
+ * through many index sizes during it, so that the tail latencies reflect the cost of resizing
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Group)
+public class HashOrderedGrowth
+{
+
+    static enum Type
+    {
+        NBHOM, CSLM,
+        // NBHOM with a bloom filter, which is rebuilt as the map grows
+        BNBHOM
+    }
+
+    private static Long[] KEYS = new Long[Integer.parseInt(System.getProperty("keyCount", Integer.toString(1 << 23)))];
+    static
+    {
+        for (int i = 0 ; i < KEYS.length ; i++)
+            KEYS[i] = ThreadLocalRandom.current().nextLong();
+    }
+
+    @Param({"NBHOM", "BNBHOM", "CSLM"})
+    private String type;
+
+    private InsertOnlyOrderedMap<Long, Long> map;
+    private final AtomicInteger nextInsert = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        nextInsert.set(0);
+        switch (Type.valueOf(type))
+        {
+            case NBHOM:
+                map = new NonBlockingHashOrderedMap<>();
+                break;
+            case BNBHOM:
+                map = new NonBlockingHashOrderedMap<>(true);
+                break;
+            case CSLM:
+                map = new InsertOnlyOrderedMap.Adapter<>(new ConcurrentSkipListMap<Long, Long>());
+                break;
+        }
+        System.gc();
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown()
+    {
+        System.out.printf("(%d entries) ", map.size());
+        map.clear();
+        map = null;
+    }
+
+    @Benchmark
+    @Group("grow")
+    @GroupThreads(3)
+    public Long put()
+    {
+        // once we run out of keys, we just keep hitting the last one
+        int index = Math.min(nextInsert.getAndIncrement(), KEYS.length - 1);
+        Long key = KEYS[index];
+        return map.putIfAbsent(key, key);
+    }
+
+    @Benchmark
+    @Group("grow")
+    @GroupThreads(1)
+    public Long get()
+    {
+        int inserted = Math.min(nextInsert.get(), KEYS.length);
+        return map.get(KEYS[ThreadLocalRandom.current().nextInt(Math.max(1, inserted))]);
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 10);
+        jmhParams.put("measurementLength", 1);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("type", new String[] { "CSLM", "NBHOM", "BNBHOM" });
+        for (String arg : args)
+        {
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedGrowth.*")
+            .forks(jmhParams.get("forks"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * <p>Measures the internals of a NonBlockingHashOrderedMap in isolation, so that a change in the blended mixes of
+ * HashOrderedCollections can be attributed to one of them:
+ *
+ * <ul>
+ * <li>predecessor: predecessor() of the hash of a random key, with a fully populated index
+ * <li>sweep: predecessor() of the first hash of every position in the upper half of the (populated) index
+ * <li>refill: the same, after first forgetting the index entries for those positions, as though a resize had just
+ * doubled the index; the difference from sweep is the cost of lazily refilling it, mostly spent in scrollToBucket()
+ * <li>rangeStart: the start of range() from a random key, which finds its first node with onOrAfter()
+ * <li>valid: a full verification of the map with valid()
+ * </ul>
+ *
+ * <p>The density of the index is varied with undersize: the index stops growing once the map contains
+ * size/undersize keys, so that each position covers undersize times as many keys as it normally would.
+ * With a non-zero skew, half of the keys have hashes drawn from just 2^(32-skew) of the 2^32 32-bit prefixes, so that
+ * the keys crowd into a small part of the index, and the walks between index positions there grow longer.
+ *
+ * <p>Run with -metrics to report the average length of the walk predecessor() makes after consulting the index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class HashOrderedInternals
+{
+
+    @Param({"65536", "1048576"})
+    private int size;
+
+    @Param({"1", "16"})
+    private int undersize;
+
+    @Param({"0", "8"})
+    private int skew;
+
+    private NonBlockingHashOrderedMap<Long, Long> map;
+    private Long[] keys;
+    private long[] hashes;
+    // the first hash of each position in the upper half of the index, in a random order
+    private long[] sweep;
+    private int sweepFrom;
+
+    private long predecessorLookups, predecessorWalk;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        map = new NonBlockingHashOrderedMap<>();
+        keys = new Long[size];
+        hashes = new long[size];
+        for (int i = 0 ; i < size ; )
+        {
+            if (i == size / undersize && undersize > 1)
+                map.freezeIndex();
+            int hash = skew > 0 && random.nextBoolean() ? random.nextInt() >> skew : random.nextInt();
+            // a Long's hashCode() is the xor of its halves, so we choose its upper half at random, and fix its lower half
+            long upper = random.nextInt();
+            Long key = (upper << 32) | ((hash ^ upper) & 0xFFFFFFFFL);
+            if (map.putIfAbsent(key, key) == null)
+            {
+                keys[i] = key;
+                hashes[i++] = NonBlockingHashOrderedMap.hash(key);
+            }
+        }
+
+        int indexLength = map.indexLength();
+        sweepFrom = indexLength / 2;
+        sweep = new long[indexLength - sweepFrom];
+        for (int i = 0 ; i < sweep.length ; i++)
+            sweep[i] = map.firstHashOfPosition(sweepFrom + i);
+        for (int i = sweep.length - 1 ; i > 0 ; i--)
+        {
+            int j = random.nextInt(i + 1);
+            long swap = sweep[i];
+            sweep[i] = sweep[j];
+            sweep[j] = swap;
+        }
+        // populate the whole index
+        for (long hash : sweep)
+            map.predecessorEntry(hash);
+        System.out.printf("(%d keys, %d index positions, %d swept) ", size, indexLength, sweep.length);
+        System.gc();
+    }
+
+    @Setup(Level.Iteration)
+    public void startMetrics()
+    {
+        HashOrderedMetrics metrics = map.metrics();
+        if (metrics != null)
+        {
+            predecessorLookups = metrics.getPredecessorLookups();
+            predecessorWalk = metrics.getPredecessorWalk();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportMetrics()
+    {
+        HashOrderedMetrics metrics = map.metrics();
+        if (metrics != null)
+        {
+            long lookups = metrics.getPredecessorLookups() - predecessorLookups;
+            long walk = metrics.getPredecessorWalk() - predecessorWalk;
+            System.out.printf("(%.2f walk per predecessor) ", lookups == 0 ? 0d : walk / (double) lookups);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        map = null;
+        keys = null;
+        hashes = null;
+        sweep = null;
+    }
+
+    @Benchmark
+    public Map.Entry<Long, Long> predecessor()
+    {
+        return map.predecessorEntry(hashes[ThreadLocalRandom.current().nextInt(hashes.length)]);
+    }
+
+    @Benchmark
+    public Map.Entry<Long, Long> sweep()
+    {
+        Map.Entry<Long, Long> last = null;
+        for (long hash : sweep)
+            last = map.predecessorEntry(hash);
+        return last;
+    }
+
+    @Benchmark
+    public Map.Entry<Long, Long> refill()
+    {
+        map.unpopulateIndex(sweepFrom);
+        Map.Entry<Long, Long> last = null;
+        for (long hash : sweep)
+            last = map.predecessorEntry(hash);
+        return last;
+    }
+
+    @Benchmark
+    public Map.Entry<Long, Long> rangeStart()
+    {
+        Long key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        return map.range(key, null).iterator().next();
+    }
+
+    @Benchmark
+    public boolean valid()
+    {
+        return map.valid();
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        boolean printMetrics = false, scaling = false;
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("threads", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("size", new String[] { "65536", "1048576" });
+        benchParams.put("undersize", new String[] { "1", "16" });
+        benchParams.put("skew", new String[] { "0", "8" });
+        for (String arg : args)
+        {
+            if (arg.equals("-metrics"))
+            {
+                printMetrics = true;
+                continue;
+            }
+            if (arg.equals("-scaling"))
+            {
+                // run at every power of two thread count up to threads
+                scaling = true;
+                continue;
+            }
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        if (printMetrics)
+            vmArgs.add("-DhashOrderedMetrics=true");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedInternals.*")
+            .forks(jmhParams.get("forks"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+
+        int maxThreads = jmhParams.get("threads");
+        for (int threads = scaling ? 1 : maxThreads ; ; threads = Math.min(maxThreads, threads * 2))
+        {
+            new Runner(builder.threads(threads).build()).run();
+            if (threads == maxThreads)
+                break;
+        }
+    }
+}
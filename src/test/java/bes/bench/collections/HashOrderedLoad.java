@@ -0,0 +1,203 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the time to load a NonBlockingHashOrderedMap from scratch, either from input already in hash order
+ * with a Builder (as we might on a warm restart), or by inserting the input in arbitrary order with putIfAbsent
+ * from every processor, as HashOrderedCollections warms up its maps
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class HashOrderedLoad
+{
+
+    static enum Method
+    {
+        BUILDER, PUT_IF_ABSENT
+    }
+
+    @Param({"BUILDER", "PUT_IF_ABSENT"})
+    private String method;
+
+    @Param({"16777216"})
+    private int count;
+
+    private Method load;
+    private Long[] keys;
+    private NonBlockingHashOrderedMap<Long, Long> map;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        load = Method.valueOf(method);
+        keys = new Long[count];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0 ; i < count ; i++)
+            keys[i] = random.nextLong();
+
+        if (load == Method.BUILDER)
+        {
+            // the Builder expects map order without duplicates, so we sort (and dedup) the keys up front
+            Arrays.sort(keys, new Comparator<Long>()
+            {
+                public int compare(Long o1, Long o2)
+                {
+                    int c = Integer.compare(o1.hashCode(), o2.hashCode());
+                    return c != 0 ? c : o1.compareTo(o2);
+                }
+            });
+            int unique = 0;
+            for (int i = 0 ; i < count ; i++)
+                if (unique == 0 || !keys[i].equals(keys[unique - 1]))
+                    keys[unique++] = keys[i];
+            keys = Arrays.copyOf(keys, unique);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void teardown()
+    {
+        map = null;
+        System.gc();
+    }
+
+    @Benchmark
+    public int load() throws InterruptedException
+    {
+        switch (load)
+        {
+            case BUILDER:
+                NonBlockingHashOrderedMap.Builder<Long, Long> builder = new NonBlockingHashOrderedMap.Builder<>();
+                for (Long key : keys)
+                    builder.add(key, key);
+                map = builder.build();
+                break;
+            case PUT_IF_ABSENT:
+                map = new NonBlockingHashOrderedMap<>();
+                final int processors = Runtime.getRuntime().availableProcessors();
+                final int perThread = (keys.length + processors - 1) / processors;
+                ExecutorService exec = Executors.newFixedThreadPool(processors);
+                for (int i = 0 ; i < processors ; i++)
+                {
+                    final int offset = perThread * i;
+                    exec.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            for (int i = offset, end = Math.min(keys.length, offset + perThread) ; i < end ; i++)
+                            {
+                                Long key = keys[i];
+                                map.putIfAbsent(key, key);
+                            }
+                        }
+                    });
+                }
+                exec.shutdown();
+                exec.awaitTermination(1L, TimeUnit.DAYS);
+                break;
+        }
+        return map.size();
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("warmups", 2);
+        jmhParams.put("measurements", 5);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("method", new String[] { "PUT_IF_ABSENT", "BUILDER" });
+        benchParams.put("count", new String[] { "16777216" });
+        for (String arg : args)
+        {
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx6G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedLoad.*")
+            .forks(jmhParams.get("forks"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .measurementIterations(jmhParams.get("measurements"))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
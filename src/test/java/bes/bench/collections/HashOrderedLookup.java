@@ -0,0 +1,199 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Looks up uniformly random keys in a static map, so that with enough keys every lookup is dominated by cache
+ * misses; a proportion of lookups may be for keys that are absent. Run with -perf to count the misses per lookup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class HashOrderedLookup
+{
+
+    static enum Type
+    {
+        NBHOM, NBHOLM, CSLM
+    }
+
+    @Param({"NBHOM", "NBHOLM", "CSLM"})
+    private String type;
+
+    @Param({"65536", "16777216"})
+    private int size;
+
+    // the proportion of lookups for keys that are present
+    @Param({"1"})
+    private double hitRatio;
+
+    private InsertOnlyOrderedMap<Long, Long> map;
+    private Long[] keys;
+    private Long[] absent;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        switch (Type.valueOf(type))
+        {
+            case NBHOM:
+                map = new NonBlockingHashOrderedMap<>();
+                break;
+            case NBHOLM:
+                map = new NonBlockingHashOrderedLongMap<>();
+                break;
+            case CSLM:
+                map = new InsertOnlyOrderedMap.Adapter<>(new ConcurrentSkipListMap<Long, Long>());
+                break;
+        }
+        keys = new Long[size];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0 ; i < size ; )
+        {
+            Long key = random.nextLong();
+            if (map.putIfAbsent(key, key) == null)
+                keys[i++] = key;
+        }
+        absent = new Long[Math.min(size, 1 << 20)];
+        for (int i = 0 ; i < absent.length ; )
+        {
+            Long key = random.nextLong();
+            if (map.get(key) == null)
+                absent[i++] = key;
+        }
+        System.gc();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        map = null;
+        keys = null;
+        absent = null;
+    }
+
+    @Benchmark
+    public Long get()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (hitRatio < 1 && random.nextFloat() >= hitRatio)
+            return map.get(absent[random.nextInt(absent.length)]);
+        return map.get(keys[random.nextInt(keys.length)]);
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        boolean addPerf = false;
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("threads", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("type", new String[] { "CSLM", "NBHOM", "NBHOLM" });
+        benchParams.put("size", new String[] { "65536", "16777216" });
+        benchParams.put("hitRatio", new String[] { "1", "0.5" });
+        for (String arg : args)
+        {
+            if (arg.equals("-perf"))
+            {
+                addPerf = true;
+                continue;
+            }
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx4G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedLookup.*")
+            .forks(jmhParams.get("forks"))
+            .threads(jmhParams.get("threads"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        // perf stat's counters (cache misses in particular) across each fork, rather than perfasm's hottest regions
+        if (addPerf)
+            builder.addProfiler(org.openjdk.jmh.profile.LinuxPerfProfiler.class);
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
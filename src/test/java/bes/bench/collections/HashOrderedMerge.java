@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import bes.bench.collections.InsertOnlyOrderedMap.BiFunction;
+
+/**
+ * Reads the range spanned by rangeSize keys (in hash order) from a random point in a number of source maps, each
+ * containing a random share of the keys, with some keys occurring in two sources, yielding each key once with the
+ * sum of its values. Compares a MergeIterator with collecting and sorting the entries of every source's range.
+ * The ConcurrentSkipListMap sources are given the order of a NonBlockingHashOrderedMap, so that either can be merged.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashOrderedMerge
+{
+
+    static enum Type
+    {
+        NBHOM, CSLM
+    }
+
+    static enum Method
+    {
+        MERGE, SORT
+    }
+
+    // the order NonBlockingHashOrderedMap keeps Long keys in
+    private static final Comparator<Long> HASH_ORDER = new Comparator<Long>()
+    {
+        public int compare(Long a, Long b)
+        {
+            int c = Integer.compare(a.hashCode(), b.hashCode());
+            return c != 0 ? c : a.compareTo(b);
+        }
+    };
+
+    private static final Comparator<Map.Entry<Long, Long>> ENTRY_ORDER = new Comparator<Map.Entry<Long, Long>>()
+    {
+        public int compare(Map.Entry<Long, Long> a, Map.Entry<Long, Long> b)
+        {
+            return HASH_ORDER.compare(a.getKey(), b.getKey());
+        }
+    };
+
+    private static final BiFunction<Long, Long, Long> SUM = new BiFunction<Long, Long, Long>()
+    {
+        public Long apply(Long a, Long b)
+        {
+            return a + b;
+        }
+    };
+
+    @Param({"NBHOM", "CSLM"})
+    private String type;
+
+    @Param({"MERGE", "SORT"})
+    private String method;
+
+    @Param({"2", "4", "8", "16"})
+    private int sources;
+
+    // the total number of distinct keys, across all sources
+    @Param({"1048576"})
+    private int size;
+
+    @Param({"1024"})
+    private int rangeSize;
+
+    // the percentage of keys that occur in a second source
+    @Param({"10"})
+    private int duplicates;
+
+    private List<InsertOnlyOrderedMap<Long, Long>> maps;
+    // the keys in hash order, so that we can find the bounds of a range of rangeSize keys
+    private Long[] keys;
+    private Method m;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        keys = new Long[size];
+        for (int i = 0 ; i < size ; i++)
+            keys[i] = random.nextLong();
+        Arrays.sort(keys, HASH_ORDER);
+
+        maps = new ArrayList<>(sources);
+        for (int i = 0 ; i < sources ; i++)
+        {
+            switch (Type.valueOf(type))
+            {
+                case NBHOM:
+                    maps.add(new NonBlockingHashOrderedMap<Long, Long>());
+                    break;
+                case CSLM:
+                    maps.add(new InsertOnlyOrderedMap.Adapter<>(new ConcurrentSkipListMap<Long, Long>(HASH_ORDER)));
+                    break;
+            }
+        }
+        for (Long key : keys)
+        {
+            int source = random.nextInt(sources);
+            maps.get(source).putIfAbsent(key, key);
+            if (random.nextInt(100) < duplicates)
+                maps.get((source + 1 + random.nextInt(sources - 1)) % sources).putIfAbsent(key, key);
+        }
+        m = Method.valueOf(method);
+        System.gc();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        maps = null;
+        keys = null;
+    }
+
+    @Benchmark
+    public long read()
+    {
+        int start = ThreadLocalRandom.current().nextInt(keys.length - rangeSize + 1);
+        Long lb = keys[start], ub = keys[start + rangeSize - 1];
+        switch (m)
+        {
+            case MERGE:
+                return merge(lb, ub);
+            case SORT:
+                return sort(lb, ub);
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private long merge(Long lb, Long ub)
+    {
+        long sum = 0;
+        for (Map.Entry<Long, Long> e : MergeIterator.merge(maps, lb, ub, SUM))
+            sum += e.getValue();
+        return sum;
+    }
+
+    private long sort(Long lb, Long ub)
+    {
+        List<Map.Entry<Long, Long>> entries = new ArrayList<>();
+        for (InsertOnlyOrderedMap<Long, Long> map : maps)
+            for (Map.Entry<Long, Long> e : map.range(lb, ub))
+                entries.add(e);
+        Collections.sort(entries, ENTRY_ORDER);
+
+        long sum = 0;
+        Iterator<Map.Entry<Long, Long>> iter = entries.iterator();
+        Map.Entry<Long, Long> next = iter.hasNext() ? iter.next() : null;
+        while (next != null)
+        {
+            Long key = next.getKey(), value = next.getValue();
+            next = iter.hasNext() ? iter.next() : null;
+            while (next != null && next.getKey().equals(key))
+            {
+                value = SUM.apply(value, next.getValue());
+                next = iter.hasNext() ? iter.next() : null;
+            }
+            sum += value;
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("type", new String[] { "CSLM", "NBHOM" });
+        benchParams.put("method", new String[] { "MERGE", "SORT" });
+        benchParams.put("sources", new String[] { "2", "4", "8", "16" });
+        benchParams.put("size", new String[] { "1048576" });
+        benchParams.put("rangeSize", new String[] { "1024" });
+        benchParams.put("duplicates", new String[] { "10" });
+        for (String arg : args)
+        {
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedMerge.*")
+            .forks(jmhParams.get("forks"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters for the hot paths of a NonBlockingHashOrderedMap, only maintained if the system property hashOrderedMetrics
+ * is set on startup. Since ENABLED is a static final, the JIT removes every guarded update when it is not set, along
+ * with any local state kept only for the sake of those updates.
+ *
+ * Like StripedCounter, each thread always updates the same stripe of counters, and readers sum them all.
+ */
+final class HashOrderedMetrics implements HashOrderedMetricsMBean
+{
+    static final boolean ENABLED = Boolean.getBoolean("hashOrderedMetrics");
+
+    static final int WALK_BUCKETS = 8;
+
+    private static final int PREDECESSOR_LOOKUPS = 0;
+    private static final int PREDECESSOR_WALK = 1;
+    private static final int INDEX_REPAIRS = 2;
+    private static final int INSERT_CAS_FAILURES = 3;
+    private static final int RESIZES = 4;
+    private static final int RESIZE_NANOS = 5;
+    private static final int RESIZE_LAG = 6;
+    private static final int WALK_HISTOGRAM = 7;
+    private static final int COUNTERS = WALK_HISTOGRAM + WALK_BUCKETS;
+
+    // the counters of a stripe are adjacent, and each stripe starts on its own cache line (of 8 longs), with an
+    // unused line at either end, so that we don't share a line with any other object
+    private static final int STRIDE = (COUNTERS + 7) & ~7;
+    private final AtomicLongArray counters = new AtomicLongArray((StripedCounter.stripes() + 2) * STRIDE);
+
+    private final NonBlockingHashOrderedMap<?, ?> map;
+
+    HashOrderedMetrics(NonBlockingHashOrderedMap<?, ?> map)
+    {
+        this.map = map;
+    }
+
+    void predecessor(int walk)
+    {
+        int base = base();
+        counters.incrementAndGet(base + PREDECESSOR_LOOKUPS);
+        if (walk > 0)
+            counters.addAndGet(base + PREDECESSOR_WALK, walk);
+        counters.incrementAndGet(base + WALK_HISTOGRAM + Math.min(WALK_BUCKETS - 1, 32 - Integer.numberOfLeadingZeros(walk)));
+    }
+
+    void indexRepair()
+    {
+        counters.incrementAndGet(base() + INDEX_REPAIRS);
+    }
+
+    void insertCasFailure()
+    {
+        counters.incrementAndGet(base() + INSERT_CAS_FAILURES);
+    }
+
+    void resize(long nanos, int lag)
+    {
+        int base = base();
+        counters.incrementAndGet(base + RESIZES);
+        counters.addAndGet(base + RESIZE_NANOS, nanos);
+        counters.addAndGet(base + RESIZE_LAG, lag);
+    }
+
+    public int getSize()
+    {
+        return map.size();
+    }
+
+    public long getPredecessorLookups()
+    {
+        return sum(PREDECESSOR_LOOKUPS);
+    }
+
+    public long getPredecessorWalk()
+    {
+        return sum(PREDECESSOR_WALK);
+    }
+
+    public long[] getPredecessorWalkHistogram()
+    {
+        long[] histogram = new long[WALK_BUCKETS];
+        for (int i = 0 ; i < WALK_BUCKETS ; i++)
+            histogram[i] = sum(WALK_HISTOGRAM + i);
+        return histogram;
+    }
+
+    public long getIndexRepairs()
+    {
+        return sum(INDEX_REPAIRS);
+    }
+
+    public long getInsertCasFailures()
+    {
+        return sum(INSERT_CAS_FAILURES);
+    }
+
+    public long getResizes()
+    {
+        return sum(RESIZES);
+    }
+
+    public long getResizeNanos()
+    {
+        return sum(RESIZE_NANOS);
+    }
+
+    public long getResizeLag()
+    {
+        return sum(RESIZE_LAG);
+    }
+
+    public int getCurrentResizeLag()
+    {
+        return map.resizeLag();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, under the provided name
+     */
+    public ObjectName register(String name)
+    {
+        try
+        {
+            ObjectName objectName = new ObjectName("bes.bench.collections:type=NonBlockingHashOrderedMap,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            return objectName;
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static void unregister(ObjectName name)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (JMException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private long sum(int counter)
+    {
+        long sum = 0;
+        for (int i = 1 ; i <= StripedCounter.stripes() ; i++)
+            sum += counters.get(i * STRIDE + counter);
+        return sum;
+    }
+
+    private static int base()
+    {
+        return (1 + StripedCounter.stripe()) * STRIDE;
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+/**
+ * The metrics of a NonBlockingHashOrderedMap, as exposed over JMX; all counts are since the map was created
+ */
+public interface HashOrderedMetricsMBean
+{
+    public int getSize();
+
+    // lookups of a predecessor in the index, and the number of nodes they walked past in total
+    public long getPredecessorLookups();
+    public long getPredecessorWalk();
+    // lookups by walk length: 0, 1, 2-3, 4-7, ..., with the last bucket covering every longer walk
+    public long[] getPredecessorWalkHistogram();
+
+    // index positions we found out of date, and wrote to
+    public long getIndexRepairs();
+
+    public long getInsertCasFailures();
+
+    public long getResizes();
+    public long getResizeNanos();
+    // the entries by which the map had outgrown its index when each resize began, in total
+    public long getResizeLag();
+    // the entries by which the map has currently outgrown its index
+    public int getCurrentResizeLag();
+}
@@ -0,0 +1,194 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Reads a page of entries from a random key in a static map, either forwards (with range) or backwards (with
+ * descendingRange), so that the cost of paging in each direction can be compared
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class HashOrderedRangeScan
+{
+
+    static enum Type
+    {
+        NBHOM, NBHOLM, CSLM
+    }
+
+    static enum Direction
+    {
+        ASCENDING, DESCENDING
+    }
+
+    @Param({"NBHOM", "NBHOLM", "CSLM"})
+    private String type;
+
+    @Param({"ASCENDING", "DESCENDING"})
+    private String direction;
+
+    @Param({"10", "1000"})
+    private int pageSize;
+
+    @Param({"4194304"})
+    private int size;
+
+    private InsertOnlyOrderedMap<Long, Long> map;
+    private Long[] keys;
+    private boolean descending;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        switch (Type.valueOf(type))
+        {
+            case NBHOM:
+                map = new NonBlockingHashOrderedMap<>();
+                break;
+            case NBHOLM:
+                map = new NonBlockingHashOrderedLongMap<>();
+                break;
+            case CSLM:
+                map = new InsertOnlyOrderedMap.Adapter<>(new ConcurrentSkipListMap<Long, Long>());
+                break;
+        }
+        descending = Direction.valueOf(direction) == Direction.DESCENDING;
+        keys = new Long[size];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0 ; i < size ; )
+        {
+            Long key = random.nextLong();
+            if (map.putIfAbsent(key, key) == null)
+                keys[i++] = key;
+        }
+        System.gc();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        map = null;
+        keys = null;
+    }
+
+    @Benchmark
+    public long page()
+    {
+        Long start = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        Iterable<Map.Entry<Long, Long>> range = descending ? map.descendingRange(null, start) : map.range(start, null);
+        long sum = 0;
+        Iterator<Map.Entry<Long, Long>> iter = range.iterator();
+        for (int i = 0 ; i < pageSize && iter.hasNext() ; i++)
+            sum += iter.next().getValue();
+        return sum;
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("threads", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("type", new String[] { "CSLM", "NBHOM", "NBHOLM" });
+        benchParams.put("direction", new String[] { "ASCENDING", "DESCENDING" });
+        benchParams.put("pageSize", new String[] { "10", "1000" });
+        benchParams.put("size", new String[] { "4194304" });
+        for (String arg : args)
+        {
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedRangeScan.*")
+            .forks(jmhParams.get("forks"))
+            .threads(jmhParams.get("threads"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
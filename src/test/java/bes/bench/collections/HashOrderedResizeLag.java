@@ -0,0 +1,176 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Inserts into many NonBlockingHashOrderedMaps at once, all growing concurrently, and counts how often (and by how
+ * much) an insert finds its map's index overdue for a resize. Each map is replaced with an empty one once it reaches
+ * entries / mapCount, so that the maps keep growing for the whole run.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class HashOrderedResizeLag
+{
+
+    @Param({"1", "16", "256"})
+    private int mapCount;
+
+    @Param({"8388608"})
+    private int entries;
+
+    private int mapSize;
+    private AtomicReferenceArray<NonBlockingHashOrderedMap<Long, Long>> maps;
+
+    // reported per unit time, like the score; divide lag or laggingInserts by inserts for a per-insert figure
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Lag
+    {
+        public long inserts;
+        // inserts that found their map's index overdue for a resize
+        public long laggingInserts;
+        // the number of entries by which the index was overdue, summed over all inserts
+        public long lag;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            inserts = laggingInserts = lag = 0;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setup()
+    {
+        mapSize = entries / mapCount;
+        maps = new AtomicReferenceArray<>(mapCount);
+        for (int i = 0 ; i < mapCount ; i++)
+            maps.set(i, new NonBlockingHashOrderedMap<Long, Long>());
+        System.gc();
+    }
+
+    @Benchmark
+    public void insert(Lag lag)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(mapCount);
+        NonBlockingHashOrderedMap<Long, Long> map = maps.get(i);
+        Long key = random.nextLong();
+        map.putIfAbsent(key, key);
+        int behind = map.resizeLag();
+        lag.inserts++;
+        if (behind > 0)
+        {
+            lag.laggingInserts++;
+            lag.lag += behind;
+        }
+        if (map.size() >= mapSize)
+            maps.compareAndSet(i, map, new NonBlockingHashOrderedMap<Long, Long>());
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("threads", 4);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("mapCount", new String[] { "1", "16", "256" });
+        benchParams.put("entries", new String[] { "8388608" });
+        for (String arg : args)
+        {
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedResizeLag.*")
+            .forks(jmhParams.get("forks"))
+            .threads(jmhParams.get("threads"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,251 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Measures the throughput of full scans of a map, split across a fork-join pool of the given parallelism.
+ * NBHOM is split with {@link NonBlockingHashOrderedMap.Range#trySplit()}; CSLM is split by halving the range of
+ * (uniformly distributed) keys, and scanning each half with subMap()
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class HashOrderedScan
+{
+
+    static enum Type
+    {
+        NBHOM, CSLM
+    }
+
+    @Param({"NBHOM", "CSLM"})
+    private String type;
+
+    @Param({"1", "2", "4", "8"})
+    private int parallelism;
+
+    @Param({"4194304"})
+    private int size;
+
+    private NonBlockingHashOrderedMap<Long, Long> nbhom;
+    private ConcurrentSkipListMap<Long, Long> cslm;
+    private ForkJoinPool pool;
+    // how many times to split the range; we aim for several tasks per thread, so that work stealing can even out any skew
+    private int splits;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        InsertOnlyOrderedMap<Long, Long> map;
+        switch (Type.valueOf(type))
+        {
+            case NBHOM:
+                map = nbhom = new NonBlockingHashOrderedMap<>();
+                break;
+            case CSLM:
+                cslm = new ConcurrentSkipListMap<>();
+                map = new InsertOnlyOrderedMap.Adapter<>(cslm);
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0 ; i < size ; )
+        {
+            Long key = random.nextLong();
+            if (map.putIfAbsent(key, key) == null)
+                i++;
+        }
+        pool = new ForkJoinPool(parallelism);
+        splits = 32 - Integer.numberOfLeadingZeros(parallelism - 1) + 3;
+        System.gc();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        pool.shutdown();
+        nbhom = null;
+        cslm = null;
+    }
+
+    @Benchmark
+    public long scan()
+    {
+        switch (Type.valueOf(type))
+        {
+            case NBHOM:
+                return pool.invoke(new NBHOMScan(nbhom.range(null, null), splits));
+            case CSLM:
+                return pool.invoke(new CSLMScan(cslm, Long.MIN_VALUE, Long.MAX_VALUE, splits));
+        }
+        throw new IllegalStateException();
+    }
+
+    private static long sum(Iterable<Map.Entry<Long, Long>> range)
+    {
+        long sum = 0;
+        for (Map.Entry<Long, Long> e : range)
+            sum += e.getValue();
+        return sum;
+    }
+
+    private static final class NBHOMScan extends RecursiveTask<Long>
+    {
+        final NonBlockingHashOrderedMap<Long, Long>.Range range;
+        final int splits;
+
+        private NBHOMScan(NonBlockingHashOrderedMap<Long, Long>.Range range, int splits)
+        {
+            this.range = range;
+            this.splits = splits;
+        }
+
+        protected Long compute()
+        {
+            if (splits > 0)
+            {
+                NonBlockingHashOrderedMap<Long, Long>.Range split = range.trySplit();
+                if (split != null)
+                {
+                    ForkJoinTask<Long> fork = new NBHOMScan(split, splits - 1).fork();
+                    return new NBHOMScan(range, splits - 1).compute() + fork.join();
+                }
+            }
+            return sum(range);
+        }
+    }
+
+    private static final class CSLMScan extends RecursiveTask<Long>
+    {
+        final ConcurrentSkipListMap<Long, Long> map;
+        final long lb, ub;
+        final int splits;
+
+        private CSLMScan(ConcurrentSkipListMap<Long, Long> map, long lb, long ub, int splits)
+        {
+            this.map = map;
+            this.lb = lb;
+            this.ub = ub;
+            this.splits = splits;
+        }
+
+        protected Long compute()
+        {
+            if (splits > 0)
+            {
+                long split = (lb >> 1) + (ub >> 1);
+                ForkJoinTask<Long> fork = new CSLMScan(map, split + 1, ub, splits - 1).fork();
+                return new CSLMScan(map, lb, split, splits - 1).compute() + fork.join();
+            }
+            return sum(map.subMap(lb, true, ub, true).entrySet());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("type", new String[] { "CSLM", "NBHOM" });
+        benchParams.put("parallelism", new String[] { "1", "2", "4", "8" });
+        benchParams.put("size", new String[] { "4194304" });
+        for (String arg : args)
+        {
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedScan.*")
+            .forks(jmhParams.get("forks"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
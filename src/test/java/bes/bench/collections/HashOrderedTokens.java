@@ -0,0 +1,208 @@
+/*
+* Licensed to the Apache Software Foundation (ASF) under one
+* or more contributor license agreements.  See the NOTICE file
+* distributed with this work for additional information
+* regarding copyright ownership.  The ASF licenses this file
+* to you under the Apache License, Version 2.0 (the
+* "License"); you may not use this file except in compliance
+* with the License.  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Looks up keys in a NonBlockingHashOrderedMap whose 64-bit tokens have only a few bits of entropy in their high
+ * 32 bits, either ordered on the 32-bit hashCode of the token (so that every key sharing a prefix collides, and
+ * must be compared with compareTo) or on the whole token (so that collisions are resolved by comparing longs)
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class HashOrderedTokens
+{
+
+    static enum Type
+    {
+        HASHCODE, TOKEN
+    }
+
+    // sorts on the high 32 bits of its token, and only then on the whole token
+    static class HashKey implements Comparable<HashKey>
+    {
+        final long token;
+
+        HashKey(long token)
+        {
+            this.token = token;
+        }
+
+        public int compareTo(HashKey that)
+        {
+            return Long.compare(token, that.token);
+        }
+
+        public int hashCode()
+        {
+            return (int) (token >> 32);
+        }
+
+        public boolean equals(Object that)
+        {
+            return that instanceof HashKey && ((HashKey) that).token == token;
+        }
+    }
+
+    static final class TokenKey extends HashKey implements NonBlockingHashOrderedMap.Token
+    {
+        TokenKey(long token)
+        {
+            super(token);
+        }
+
+        public long token()
+        {
+            return token;
+        }
+    }
+
+    @Param({"HASHCODE", "TOKEN"})
+    private String type;
+
+    @Param({"1048576"})
+    private int size;
+
+    // the number of distinct values the high 32 bits of a token may take is 1 << prefixBits
+    @Param({"12", "20"})
+    private int prefixBits;
+
+    private NonBlockingHashOrderedMap<HashKey, HashKey> map;
+    private HashKey[] keys;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        boolean tokens = Type.valueOf(type) == Type.TOKEN;
+        map = new NonBlockingHashOrderedMap<>();
+        keys = new HashKey[size];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0 ; i < size ; )
+        {
+            // spread the prefixes evenly over the high bits, so that the index can still distinguish them
+            long token = ((long) random.nextInt(1 << prefixBits) << (64 - prefixBits)) | (random.nextInt() & 0xffffffffL);
+            HashKey key = tokens ? new TokenKey(token) : new HashKey(token);
+            if (map.putIfAbsent(key, key) == null)
+                keys[i++] = key;
+        }
+        System.gc();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        map = null;
+        keys = null;
+    }
+
+    @Benchmark
+    public HashKey get()
+    {
+        return map.get(keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("threads", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("type", new String[] { "HASHCODE", "TOKEN" });
+        benchParams.put("size", new String[] { "1048576" });
+        benchParams.put("prefixBits", new String[] { "12", "20" });
+        for (String arg : args)
+        {
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*HashOrderedTokens.*")
+            .forks(jmhParams.get("forks"))
+            .threads(jmhParams.get("threads"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -25,11 +25,48 @@ public interface InsertOnlyOrderedMap<K extends Comparable<? super K>, V>
 
     public V get(K key);
     public V putIfAbsent(K key, V value);
+    /**
+     * Insert each of keys[offset..offset+count) (with its corresponding value) that is not already present, returning
+     * the number inserted. The keys should already be in the order the map iterates them, so that implementations
+     * may insert them all in a single forward walk; unsorted input is still inserted correctly, only less efficiently.
+     */
+    public int putAllSorted(K[] keys, V[] values, int offset, int count);
+
+    /**
+     * Atomic updates of existing values, with the semantics of their namesakes on java.util.concurrent.ConcurrentMap,
+     * except that since these maps are insert-only, the remapping functions may not return null (and if they do,
+     * an IllegalArgumentException is thrown, and the map is left unmodified). The functions may be invoked multiple
+     * times if we race with other updates to the same key.
+     */
+    public boolean replace(K key, V oldValue, V newValue);
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remapping);
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remapping);
+
+    /**
+     * Point queries with the semantics of their namesakes on java.util.NavigableMap, but in the order the map iterates
+     * its keys. Where possible the entry returned is the map's own, so that no allocation is necessary, in which case
+     * it reflects any later update to its value.
+     */
+    public Map.Entry<K, V> ceilingEntry(K key);
+    public Map.Entry<K, V> floorEntry(K key);
+    public Map.Entry<K, V> higherEntry(K key);
+    public Map.Entry<K, V> lowerEntry(K key);
+    public Map.Entry<K, V> firstEntry();
+    public Map.Entry<K, V> lastEntry();
+
     public int size();
     public Iterable<Map.Entry<K, V>> range(K lb, K ub);
+    // as range(), but iterating from ub down to lb
+    public Iterable<Map.Entry<K, V>> descendingRange(K lb, K ub);
     public void clear();
 
-    public static final class Adapter<K extends Comparable<? super K>, V> implements InsertOnlyOrderedMap<K, V>
+    // a stand-in for java.util.function.BiFunction, which we cannot depend on
+    public static interface BiFunction<T, U, R>
+    {
+        public R apply(T t, U u);
+    }
+
+    public static final class Adapter<K extends Comparable<? super K>, V> implements MutableOrderedMap<K, V>
     {
         final ConcurrentNavigableMap<K, V> wrapped;
         public Adapter(ConcurrentNavigableMap<K, V> wrapped)
@@ -51,6 +88,21 @@ public interface InsertOnlyOrderedMap<K extends Comparable<? super K>, V>
             return wrapped.subMap(lb, true, ub, true).entrySet();
         }
 
+        public Iterable<Map.Entry<K, V>> descendingRange(K lb, K ub)
+        {
+            ConcurrentNavigableMap<K, V> descending = wrapped.descendingMap();
+            if (lb == null || ub == null)
+            {
+                if (lb == null && ub == null)
+                    return descending.entrySet();
+                else if (lb == null)
+                    return descending.tailMap(ub, true).entrySet();
+                else
+                    return descending.headMap(lb, true).entrySet();
+            }
+            return descending.subMap(ub, true, lb, true).entrySet();
+        }
+
         public int size()
         {
             return wrapped.size();
@@ -61,15 +113,132 @@ public interface InsertOnlyOrderedMap<K extends Comparable<? super K>, V>
             return wrapped.putIfAbsent(key, value);
         }
 
+        public int putAllSorted(K[] keys, V[] values, int offset, int count)
+        {
+            int inserted = 0;
+            for (int i = offset, end = offset + count ; i < end ; i++)
+                if (wrapped.putIfAbsent(keys[i], values[i]) == null)
+                    inserted++;
+            return inserted;
+        }
+
         public V get(K key)
         {
             return wrapped.get(key);
         }
 
+        public Map.Entry<K, V> ceilingEntry(K key)
+        {
+            return wrapped.ceilingEntry(key);
+        }
+
+        public Map.Entry<K, V> floorEntry(K key)
+        {
+            return wrapped.floorEntry(key);
+        }
+
+        public Map.Entry<K, V> higherEntry(K key)
+        {
+            return wrapped.higherEntry(key);
+        }
+
+        public Map.Entry<K, V> lowerEntry(K key)
+        {
+            return wrapped.lowerEntry(key);
+        }
+
+        public Map.Entry<K, V> firstEntry()
+        {
+            return wrapped.firstEntry();
+        }
+
+        public Map.Entry<K, V> lastEntry()
+        {
+            return wrapped.lastEntry();
+        }
+
+        public boolean replace(K key, V oldValue, V newValue)
+        {
+            if (newValue == null)
+                throw new IllegalArgumentException();
+            return wrapped.replace(key, oldValue, newValue);
+        }
+
+        public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remapping)
+        {
+            while (true)
+            {
+                V oldValue = wrapped.get(key);
+                if (oldValue == null)
+                    return null;
+                V newValue = remapping.apply(key, oldValue);
+                if (newValue == null)
+                    throw new IllegalArgumentException();
+                if (wrapped.replace(key, oldValue, newValue))
+                    return newValue;
+            }
+        }
+
+        public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remapping)
+        {
+            while (true)
+            {
+                V oldValue = wrapped.putIfAbsent(key, value);
+                if (oldValue == null)
+                    return value;
+                V newValue = remapping.apply(oldValue, value);
+                if (newValue == null)
+                    throw new IllegalArgumentException();
+                if (wrapped.replace(key, oldValue, newValue))
+                    return newValue;
+            }
+        }
+
+        public V remove(K key)
+        {
+            return wrapped.remove(key);
+        }
+
+        public boolean remove(K key, V value)
+        {
+            return wrapped.remove(key, value);
+        }
+
         public void clear()
         {
             wrapped.clear();
         }
+
+        public void truncate(K lb, K ub)
+        {
+            if (lb == null || ub == null)
+            {
+                if (lb == null && ub == null)
+                    wrapped.clear();
+                else if (lb == null)
+                    wrapped.headMap(ub, true).clear();
+                else
+                    wrapped.tailMap(lb, true).clear();
+            }
+            else
+            {
+                wrapped.subMap(lb, true, ub, true).clear();
+            }
+        }
+
+        public int count(K lb, K ub)
+        {
+            if (lb == null || ub == null)
+            {
+                if (lb == null && ub == null)
+                    return wrapped.size();
+                else if (lb == null)
+                    return wrapped.headMap(ub, true).size();
+                else
+                    return wrapped.tailMap(lb, true).size();
+            }
+            return wrapped.subMap(lb, true, ub, true).size();
+        }
     }
 
 }
@@ -0,0 +1,218 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import bes.bench.collections.InsertOnlyOrderedMap.BiFunction;
+
+/**
+ * <p>Merges any number of iterators, each in the order of a {@link NonBlockingHashOrderedMap} (by hash, then by key),
+ * into a single iterator in the same order, with each key occurring once. Where a key occurs in more than one source,
+ * its values are combined by the reconciler, in the order the sources were provided: i.e. reconcile(a, b) where
+ * a is from the earlier source (or is the result of reconciling all earlier sources).
+ *
+ * <p>The sources are kept in a tournament (loser) tree, with the hash, key and value at the head of each source held in
+ * parallel arrays, so that most comparisons are of two longs in the same array, and compareTo is only called for keys
+ * with equal hashes. Replacing the winner costs exactly one comparison per level of the tree, against up to two per
+ * level of a binary heap. Ties between equal keys are broken by source, so that they leave the tree in source order.
+ *
+ * <p>To avoid allocating per entry, the entry returned by next() is reused by the following call to next(); a caller
+ * wanting to retain it must copy it. The entries of the sources are not retained beyond their turn at the head of
+ * the tree, so sources may reuse their entries in the same way.
+ */
+public class MergeIterator<K extends Comparable<? super K>, V> implements Iterator<Map.Entry<K, V>>
+{
+    private final BiFunction<? super V, ? super V, ? extends V> reconciler;
+
+    // the head of each source, by its index in the order provided (padded to a power of two);
+    // a null key indicates the source is exhausted
+    private final Iterator<Map.Entry<K, V>>[] sources;
+    private final long[] hashes;
+    private final K[] keys;
+    private final V[] values;
+    // the tournament tree: tree[0] is the source with the least head, and tree[1..] the loser of the match at each
+    // internal node, whose children are 2i and 2i+1; source i is the (implicit) leaf at sources.length + i
+    private final int[] tree;
+
+    private final ReusedEntry<K, V> entry = new ReusedEntry<>();
+    // true if entry holds the next result, that has not yet been returned
+    private boolean ready;
+
+    public MergeIterator(List<Iterator<Map.Entry<K, V>>> sources, BiFunction<? super V, ? super V, ? extends V> reconciler)
+    {
+        this.reconciler = reconciler;
+        int count = Math.max(1, Integer.highestOneBit(sources.size() - 1) << 1);
+        this.sources = new Iterator[count];
+        this.hashes = new long[count];
+        this.keys = (K[]) new Comparable[count];
+        this.values = (V[]) new Object[count];
+        this.tree = new int[count];
+        for (int i = 0 ; i < sources.size() ; i++)
+        {
+            this.sources[i] = sources.get(i);
+            load(i);
+        }
+
+        // play the initial matches bottom up, remembering the winner of each node's match while we go
+        int[] winners = new int[count * 2];
+        for (int i = 0 ; i < count ; i++)
+            winners[count + i] = i;
+        for (int node = count - 1 ; node > 0 ; node--)
+        {
+            int a = winners[node * 2], b = winners[node * 2 + 1];
+            boolean aWins = before(a, b);
+            winners[node] = aWins ? a : b;
+            tree[node] = aWins ? b : a;
+        }
+        tree[0] = winners[1];
+    }
+
+    /**
+     * Merge range(lb, ub) of each of the maps, which must all be in the order of a NonBlockingHashOrderedMap
+     */
+    public static <K extends Comparable<? super K>, V> Iterable<Map.Entry<K, V>> merge(final List<? extends InsertOnlyOrderedMap<K, V>> maps, final K lb, final K ub, final BiFunction<? super V, ? super V, ? extends V> reconciler)
+    {
+        return new Iterable<Map.Entry<K, V>>()
+        {
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                List<Iterator<Map.Entry<K, V>>> sources = new ArrayList<>(maps.size());
+                for (InsertOnlyOrderedMap<K, V> map : maps)
+                    sources.add(map.range(lb, ub).iterator());
+                return new MergeIterator<>(sources, reconciler);
+            }
+        };
+    }
+
+    public boolean hasNext()
+    {
+        if (ready)
+            return true;
+
+        int winner = tree[0];
+        K key = keys[winner];
+        if (key == null)
+            return false;
+
+        long hash = hashes[winner];
+        V value = values[winner];
+        advance(winner);
+        // gather the same key from any other sources, which win in source order
+        while (keys[winner = tree[0]] != null && hashes[winner] == hash && keys[winner].compareTo(key) == 0)
+        {
+            value = reconciler.apply(value, values[winner]);
+            if (value == null)
+                throw new IllegalArgumentException();
+            advance(winner);
+        }
+        entry.key = key;
+        entry.value = value;
+        ready = true;
+        return true;
+    }
+
+    public Map.Entry<K, V> next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        ready = false;
+        return entry;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    // replace the head of the winning source with its next entry, and replay its matches up to the root
+    private void advance(int winner)
+    {
+        load(winner);
+        for (int node = (sources.length + winner) >> 1 ; node > 0 ; node >>= 1)
+        {
+            int loser = tree[node];
+            if (before(loser, winner))
+            {
+                tree[node] = winner;
+                winner = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    private void load(int i)
+    {
+        Iterator<Map.Entry<K, V>> source = sources[i];
+        if (!source.hasNext())
+        {
+            sources[i] = null;
+            keys[i] = null;
+            values[i] = null;
+            return;
+        }
+        Map.Entry<K, V> next = source.next();
+        keys[i] = next.getKey();
+        values[i] = next.getValue();
+        hashes[i] = NonBlockingHashOrderedMap.hash(next);
+    }
+
+    // whether the head of source a sorts before the head of source b; exhausted sources sort last
+    private boolean before(int a, int b)
+    {
+        K key = keys[b];
+        if (key == null)
+            return true;
+        if (keys[a] == null)
+            return false;
+        if (hashes[a] != hashes[b])
+            return hashes[a] < hashes[b];
+        int c = keys[a].compareTo(key);
+        return c != 0 ? c < 0 : a < b;
+    }
+
+    private static final class ReusedEntry<K, V> implements Map.Entry<K, V>
+    {
+        K key;
+        V value;
+
+        public K getKey()
+        {
+            return key;
+        }
+
+        public V getValue()
+        {
+            return value;
+        }
+
+        public V setValue(V value)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public String toString()
+        {
+            return key + "=" + value;
+        }
+    }
+}
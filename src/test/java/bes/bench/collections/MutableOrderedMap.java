@@ -0,0 +1,33 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+/**
+ * An {@link InsertOnlyOrderedMap} that additionally permits entries to be removed, individually or by range
+ */
+public interface MutableOrderedMap<K extends Comparable<? super K>, V> extends InsertOnlyOrderedMap<K, V>
+{
+
+    public V remove(K key);
+    public boolean remove(K key, V value);
+    // removes every entry in the range (as defined by range(lb, ub)), concurrently with other operations
+    public void truncate(K lb, K ub);
+    // the number of entries in the range (as defined by range(lb, ub))
+    public int count(K lb, K ub);
+
+}
@@ -0,0 +1,571 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import static bes.bench.collections.NonBlockingHashOrderedMap.INDEX_BUCKET_MASK;
+import static bes.bench.collections.NonBlockingHashOrderedMap.INDEX_SHIFT;
+import static bes.bench.collections.NonBlockingHashOrderedMap.firstHashOfIndex;
+import static bes.bench.collections.NonBlockingHashOrderedMap.indexHash;
+import static bes.bench.collections.NonBlockingHashOrderedMap.resizeCheckMask;
+import static bes.bench.collections.NonBlockingHashOrderedMap.resizeThreshold;
+
+/**
+ * <p>A specialisation of {@link NonBlockingHashOrderedMap} for primitive long keys, ordered by signed long comparison.
+ *
+ * <p>Since the top 32 bits of a long are a valid hash prefix for this ordering, we can index the list exactly as
+ * NonBlockingHashOrderedMap does, but we never need to box a key, and the only comparison we ever perform is
+ * between two longs, so a node can be located by its key alone, without any reference to a separate hash.
+ *
+ * <p>The boxed InsertOnlyOrderedMap methods are provided for convenience, and only unbox their arguments.
+ */
+public class NonBlockingHashOrderedLongMap<V> implements InsertOnlyOrderedMap<Long, V>
+{
+
+    // see NonBlockingHashOrderedMap.size, resizeAt, resizeCheckMask and resizing
+    private final StripedCounter size = new StripedCounter();
+    private volatile int resizeAt = resizeThreshold(1 << 10);
+    private volatile int resizeCheckMask = resizeCheckMask(resizeAt);
+    private volatile int resizing;
+
+    // the predecessor to the whole list; its key is never consulted
+    private final Node<V> head = new Node<>(Long.MIN_VALUE, null);
+
+    // see NonBlockingHashOrderedMap.index
+    private volatile Node<V>[][] index = new Node[1][1 << 10];
+    {
+        index[0][0] = head;
+    }
+
+    public static interface LongEntry<V> extends Map.Entry<Long, V>
+    {
+        public long getLongKey();
+    }
+
+    private static final class Node<V> implements LongEntry<V>
+    {
+        final long key;
+        volatile V value;
+        volatile Node<V> next;
+
+        private Node(long key, V value)
+        {
+            this.key = key;
+            this.value = value;
+        }
+
+        public long getLongKey()
+        {
+            return key;
+        }
+
+        public Long getKey()
+        {
+            return key;
+        }
+
+        public V getValue()
+        {
+            return value;
+        }
+
+        public V setValue(V value)
+        {
+            if (value == null)
+                throw new IllegalArgumentException();
+            return (V) valueUpdater.getAndSet(this, value);
+        }
+    }
+
+    public V putIfAbsent(Long key, V value)
+    {
+        return putIfAbsentLong(key, value);
+    }
+
+    // not an overload of putIfAbsent, since with V = Long a call with a primitive key would be ambiguous
+    public V putIfAbsentLong(long key, V value)
+    {
+        if (value == null)
+            throw new IllegalArgumentException();
+        // unlike NonBlockingHashOrderedMap, this is the direct predecessor (at the time we looked)
+        return putIfAbsent(predecessor(key), new Node<>(key, value));
+    }
+
+    public int putAllSorted(Long[] keys, V[] values, int offset, int count)
+    {
+        // see NonBlockingHashOrderedMap.putAllSorted
+        long maxWalk = (1L << 32) / indexLength(index);
+        int inserted = 0;
+        Node<V> pred = head;
+        for (int i = offset, end = offset + count ; i < end ; i++)
+        {
+            long key = keys[i];
+            V value = values[i];
+            if (value == null)
+                throw new IllegalArgumentException();
+            // the head's key is never consulted, so we always look it up in the index for the first key
+            if (pred == head || hash(key) - (long) hash(pred.key) > maxWalk || pred.key >= key)
+                pred = predecessor(key);
+            Node<V> newNode = new Node<>(key, value);
+            if (putIfAbsent(pred, newNode) == null)
+            {
+                inserted++;
+                pred = newNode;
+            }
+        }
+        return inserted;
+    }
+
+    private V putIfAbsent(Node<V> pred, Node<V> newNode)
+    {
+        long key = newNode.key;
+        while (true)
+        {
+            Node<V> next = pred.next;
+            if (next == null || next.key >= key)
+            {
+                if (next != null && next.key == key)
+                    return next.value;
+                nextUpdater.lazySet(newNode, next);
+                if (nextUpdater.compareAndSet(pred, next, newNode))
+                {
+                    maybeResize(size.add(1));
+                    return null;
+                }
+            }
+            else
+            {
+                pred = next;
+            }
+        }
+    }
+
+    // see NonBlockingHashOrderedMap.replace; since we never remove a node, we need never look up a key twice
+    public boolean replace(Long key, V oldValue, V newValue)
+    {
+        if (newValue == null)
+            throw new IllegalArgumentException();
+        Node<V> node = find(key);
+        if (node == null)
+            return false;
+        while (true)
+        {
+            V value = node.value;
+            if (!value.equals(oldValue))
+                return false;
+            if (valueUpdater.compareAndSet(node, value, newValue))
+                return true;
+        }
+    }
+
+    public V computeIfPresent(Long key, BiFunction<? super Long, ? super V, ? extends V> remapping)
+    {
+        Node<V> node = find(key);
+        if (node == null)
+            return null;
+        while (true)
+        {
+            V value = node.value;
+            V newValue = remapping.apply(key, value);
+            if (newValue == null)
+                throw new IllegalArgumentException();
+            if (valueUpdater.compareAndSet(node, value, newValue))
+                return newValue;
+        }
+    }
+
+    public V merge(Long key, V value, BiFunction<? super V, ? super V, ? extends V> remapping)
+    {
+        if (value == null)
+            throw new IllegalArgumentException();
+        Node<V> node = find(key);
+        if (node == null)
+        {
+            if (putIfAbsentLong(key, value) == null)
+                return value;
+            node = find(key);
+        }
+        while (true)
+        {
+            V oldValue = node.value;
+            V newValue = remapping.apply(oldValue, value);
+            if (newValue == null)
+                throw new IllegalArgumentException();
+            if (valueUpdater.compareAndSet(node, oldValue, newValue))
+                return newValue;
+        }
+    }
+
+    private Node<V> find(long key)
+    {
+        Node<V> node = predecessor(key).next;
+        while (node != null && node.key < key)
+            node = node.next;
+        return node != null && node.key == key ? node : null;
+    }
+
+    public V get(Long key)
+    {
+        return get(key.longValue());
+    }
+
+    public V get(long key)
+    {
+        Node<V> node = predecessor(key).next;
+        while (node != null && node.key < key)
+            node = node.next;
+        return node != null && node.key == key ? node.value : null;
+    }
+
+    // find the node directly preceding the provided key; always non-null return
+    private Node<V> predecessor(long key)
+    {
+        Node<V>[][] index = this.index;
+        int indexHash = indexHash(hash(key));
+        int indexMask = indexLength(index) - 1;
+        int i = indexHash & indexMask;
+        Node<V> node;
+        {
+            Node<V>[] indexBucket = index[i >> INDEX_SHIFT];
+            if (indexBucket == null)
+            {
+                indexMask >>= 1;
+                i &= indexMask;
+                indexBucket = index[i >> INDEX_SHIFT];
+            }
+            node = indexBucket[i & INDEX_BUCKET_MASK];
+        }
+        if (node == null)
+        {
+            int j = i;
+            while (node == null)
+            {
+                j ^= Integer.highestOneBit(j);
+                node = index[j >> INDEX_SHIFT][j & INDEX_BUCKET_MASK];
+            }
+            while (j != i)
+            {
+                j |= Integer.lowestOneBit(i ^ j);
+                node = scrollToBucket(j, node, null, index);
+            }
+        }
+        else
+        {
+            node = scrollToBucket(i, node, node, index);
+        }
+
+        for (Node<V> next = node.next ; next != null && next.key < key ; next = next.next)
+            node = next;
+        return node;
+    }
+
+    private Node<V> scrollToBucket(int i, Node<V> node, Node<V> exp, Node<V>[][] index)
+    {
+        Node<V> result = node;
+        long bucketStart = (long) firstHashOfIndex(i) << 32;
+        for (Node<V> next = node.next ; next != null && next.key < bucketStart ; next = next.next)
+            result = next;
+        if (result != exp)
+        {
+            Node[] indexBucket = index[i >> INDEX_SHIFT];
+            if (indexBucket != null)
+                indexBucket[i & INDEX_BUCKET_MASK] = result;
+        }
+        return result;
+    }
+
+    // the 32-bit prefix of the key we index on
+    private static int hash(long key)
+    {
+        return (int) (key >>> 32);
+    }
+
+    private static int indexLength(Node<?>[][] index)
+    {
+        return index.length == 1 ? index[0].length : index.length << INDEX_SHIFT;
+    }
+
+    // find the first node that is equal to or greater than key
+    private Node<V> onOrAfter(long key)
+    {
+        Node<V> node = predecessor(key).next;
+        while (node != null && node.key < key)
+            node = node.next;
+        return node;
+    }
+
+    public LongEntry<V> ceilingEntry(Long key)
+    {
+        return ceilingEntry(key.longValue());
+    }
+
+    public LongEntry<V> floorEntry(Long key)
+    {
+        return floorEntry(key.longValue());
+    }
+
+    public LongEntry<V> higherEntry(Long key)
+    {
+        return higherEntry(key.longValue());
+    }
+
+    public LongEntry<V> lowerEntry(Long key)
+    {
+        return lowerEntry(key.longValue());
+    }
+
+    // the entries we return are our own nodes
+    public LongEntry<V> ceilingEntry(long key)
+    {
+        return onOrAfter(key);
+    }
+
+    public LongEntry<V> floorEntry(long key)
+    {
+        Node<V> node = predecessor(key);
+        Node<V> next = node.next;
+        if (next != null && next.key == key)
+            return next;
+        return node == head ? null : node;
+    }
+
+    public LongEntry<V> higherEntry(long key)
+    {
+        return key == Long.MAX_VALUE ? null : onOrAfter(key + 1);
+    }
+
+    public LongEntry<V> lowerEntry(long key)
+    {
+        Node<V> node = predecessor(key);
+        return node == head ? null : node;
+    }
+
+    public LongEntry<V> firstEntry()
+    {
+        return head.next;
+    }
+
+    public LongEntry<V> lastEntry()
+    {
+        Node<V> node = predecessor(Long.MAX_VALUE);
+        for (Node<V> next = node.next ; next != null ; next = next.next)
+            node = next;
+        return node == head ? null : node;
+    }
+
+    public int size()
+    {
+        return size.sum();
+    }
+
+    // see NonBlockingHashOrderedMap.maybeResize
+    private void maybeResize(int stripeSize)
+    {
+        if ((stripeSize & resizeCheckMask) != 0)
+            return;
+        int size = this.size.sum();
+        if (size >= resizeAt && resizingUpdater.compareAndSet(this, 0, 1))
+        {
+            try
+            {
+                resize(size * 2);
+            }
+            finally
+            {
+                resizing = 0;
+            }
+        }
+    }
+
+    // all we do is allocate a suitably large copy of the existing index and let the readers/writers lazily populate it
+    private void resize(int targetSize)
+    {
+        Node<V>[][] resize = index;
+        int cur = indexLength(resize);
+        int len = cur;
+        while (len < targetSize)
+            len *= 2;
+        if (cur != len)
+        {
+            resize = Arrays.copyOf(resize, Math.max(1, len >> INDEX_SHIFT));
+            if (cur < 1 << INDEX_SHIFT)
+                resize[0] = Arrays.copyOf(resize[0], Math.min(len, 1 << INDEX_SHIFT));
+            index = resize;
+            for (int i = Math.max(1, cur >> INDEX_SHIFT) ; i != resize.length ; i++)
+            {
+                resize[i] = new Node[1 << INDEX_SHIFT];
+                index = resize;
+            }
+        }
+        resizeAt = resizeThreshold(indexLength(index));
+        resizeCheckMask = resizeCheckMask(resizeAt);
+    }
+
+    public Iterable<Map.Entry<Long, V>> range(Long lb, Long ub)
+    {
+        return (Iterable) range(lb == null ? Long.MIN_VALUE : lb, ub == null ? Long.MAX_VALUE : ub);
+    }
+
+    // bounds are always inclusive
+    public Iterable<LongEntry<V>> range(final long lb, final long ub)
+    {
+        return new Iterable<LongEntry<V>>()
+        {
+            public Iterator<LongEntry<V>> iterator()
+            {
+                return new Iterator<LongEntry<V>>()
+                {
+                    Node<V> node = lb == Long.MIN_VALUE ? head.next : onOrAfter(lb);
+                    public boolean hasNext()
+                    {
+                        return node != null && node.key <= ub;
+                    }
+
+                    public LongEntry<V> next()
+                    {
+                        Node<V> r = node;
+                        node = node.next;
+                        return r;
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    public Iterable<Map.Entry<Long, V>> descendingRange(Long lb, Long ub)
+    {
+        return (Iterable) descendingRange(lb == null ? Long.MIN_VALUE : lb, ub == null ? Long.MAX_VALUE : ub);
+    }
+
+    // bounds are always inclusive; iterates from ub down to lb
+    public Iterable<LongEntry<V>> descendingRange(final long lb, final long ub)
+    {
+        return new Iterable<LongEntry<V>>()
+        {
+            public Iterator<LongEntry<V>> iterator()
+            {
+                return new DescendingIterator(lb, ub);
+            }
+        };
+    }
+
+    // see NonBlockingHashOrderedMap.DescendingIterator; since our keys are their own hashes, we can chunk by key
+    private final class DescendingIterator implements Iterator<LongEntry<V>>
+    {
+        private static final int TARGET_CHUNK_SIZE = 32;
+
+        final long lb;
+        // the upper key bound of the next chunk, and the width we expect to contain ~TARGET_CHUNK_SIZE nodes;
+        // since chunkEnd cannot go below Long.MIN_VALUE, we separately note when we have returned the chunk starting at lb
+        long chunkEnd;
+        long chunkWidth;
+        boolean exhausted;
+
+        Node<V>[] chunk = new Node[TARGET_CHUNK_SIZE * 2];
+        int remaining;
+
+        DescendingIterator(long lb, long ub)
+        {
+            this.lb = lb;
+            this.chunkEnd = ub;
+            this.exhausted = ub < lb;
+            // the key space is twice Long.MAX_VALUE wide
+            long perNode = Long.MAX_VALUE / Math.max(1, size());
+            this.chunkWidth = perNode > Long.MAX_VALUE / (2 * TARGET_CHUNK_SIZE) ? Long.MAX_VALUE : perNode * 2 * TARGET_CHUNK_SIZE;
+        }
+
+        public boolean hasNext()
+        {
+            while (remaining == 0 && !exhausted)
+                nextChunk();
+            return remaining > 0;
+        }
+
+        public LongEntry<V> next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Node<V> r = chunk[--remaining];
+            chunk[remaining] = null;
+            return r;
+        }
+
+        private void nextChunk()
+        {
+            // chunkEnd - chunkWidth + 1, bounded below by lb, and computed without overflow
+            long chunkStart = chunkEnd < Long.MIN_VALUE + (chunkWidth - 1) ? lb : Math.max(lb, chunkEnd - (chunkWidth - 1));
+            int count = 0;
+            for (Node<V> node = predecessor(chunkStart).next ; node != null && node.key <= chunkEnd ; node = node.next)
+            {
+                if (node.key < chunkStart)
+                    continue;
+                if (count == chunk.length)
+                    chunk = Arrays.copyOf(chunk, count * 2);
+                chunk[count++] = node;
+            }
+            remaining = count;
+            if (chunkStart == lb)
+                exhausted = true;
+            else
+                chunkEnd = chunkStart - 1;
+            if (count == 0)
+                chunkWidth = chunkWidth > Long.MAX_VALUE / 2 ? Long.MAX_VALUE : chunkWidth * 2;
+            else if (count > TARGET_CHUNK_SIZE * 4 && chunkWidth > 1)
+                chunkWidth /= 2;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public void clear()
+    {
+        for (Node[] table : index)
+            Arrays.fill(table, null);
+        for (Node node = head, next = node.next; next != null ; node = next, next = next.next)
+            node.next = null;
+    }
+
+    public boolean valid()
+    {
+        Node<V> first = head.next;
+        if (first == null)
+            return true;
+        for (Node<V> prev = first, n = prev.next ; n != null ; prev = n, n = n.next)
+            if (prev.key >= n.key || predecessor(n.key).next != n)
+                return false;
+        return true;
+    }
+
+    private static final AtomicIntegerFieldUpdater<NonBlockingHashOrderedLongMap> resizingUpdater = AtomicIntegerFieldUpdater.newUpdater(NonBlockingHashOrderedLongMap.class, "resizing");
+    private static final AtomicReferenceFieldUpdater<Node, Node> nextUpdater = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+    private static final AtomicReferenceFieldUpdater<Node, Object> valueUpdater = AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "value");
+}
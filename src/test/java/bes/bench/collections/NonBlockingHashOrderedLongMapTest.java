@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NonBlockingHashOrderedLongMapTest
+{
+
+    // with V = Long, a primitive key must resolve to the boxed putIfAbsent without ambiguity
+    @Test
+    public void testPutIfAbsentWithLongValues()
+    {
+        NonBlockingHashOrderedLongMap<Long> map = new NonBlockingHashOrderedLongMap<>();
+        Random random = new Random(0);
+        for (int i = 0 ; i < 10000 ; i++)
+        {
+            long key = random.nextLong();
+            Assert.assertNull(map.putIfAbsent(key, key));
+            Assert.assertEquals(Long.valueOf(key), map.putIfAbsent(key, key + 1));
+            Assert.assertEquals(Long.valueOf(key), map.putIfAbsentLong(key, key + 1));
+            Assert.assertEquals(Long.valueOf(key), map.get(key));
+        }
+        Assert.assertEquals(10000, map.size());
+        Assert.assertTrue(map.valid());
+    }
+
+}
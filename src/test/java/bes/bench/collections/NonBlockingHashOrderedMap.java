@@ -20,19 +20,22 @@ package bes.bench.collections;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
- * <p>An insert-only hash map that also supports range slicing (as defined by normal signed integer comparison).
+ * <p>A concurrent hash map that also supports range slicing (as defined by normal signed integer comparison).
  * The only condition is that for two keys k1, k2: k1 < k2 => k1.hashCode() <= k2.hashCode()
  *
  * This data structure essentially only works for keys that are first sorted by some hash value (and may then be sorted
  * within those hashes arbitrarily), where a 32-bit (signed) prefix of the hash we sort by is returned by hashCode()
  *
+ * <p>Alternatively, keys may implement {@link Token} to be sorted by a full 64-bit (signed) hash, so that far fewer keys
+ * share a hash, and must be compared directly. Keys that do not are sorted as though their token were their hashCode()
+ * shifted into the top 32 bits, so that either way we index on the top 32 bits of the token.
+ *
  * <p>This is essentially a variant of a shalev/shavit "split ordered list" hashmap, except for simplicity we treat the hash
  * table as only an index into our hash-ordered linked-list, and we update the index lazily on reads
  *
@@ -46,16 +49,66 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  * and walking forwards O(1) nodes. Since we do this lazily, we may have to look back multiple buckets, filling forwards
  * as we go, but the same principle applies
  *
+ * <p>Removal follows the same scheme as {@link java.util.concurrent.ConcurrentSkipListMap}: a node is first logically
+ * removed by nulling its value, then a marker node is appended to it so that nothing can be inserted directly after it,
+ * and finally it is unlinked from its predecessor. Any thread that encounters a removed node helps complete this process.
+ * The index may still refer to a removed node, so all readers of the index treat such an entry as if it were absent.
+ *
+ * <p>Optionally, we also count our entries in a fixed number of equal slices of our hash range, so that we can count
+ * the entries in a range, or estimate the rank of a key, without visiting every entry. See count().
+ *
+ * <p>Optionally, we maintain a {@link BloomFilter} of the hashes we contain, so that a lookup of an absent key can
+ * usually return without consulting the index or the list at all. See addToFilter() and maybeRebuildFilter().
+ *
  */
-public class NonBlockingHashOrderedMap<K extends Comparable<? super K>, V> implements InsertOnlyOrderedMap<K, V>
+public class NonBlockingHashOrderedMap<K extends Comparable<? super K>, V> implements MutableOrderedMap<K, V>
 {
-    private static int INDEX_SHIFT = 18;
-    private static int INDEX_BUCKET_MASK = (1 << INDEX_SHIFT) - 1;
+    static final int INDEX_SHIFT = 18;
+    static final int INDEX_BUCKET_MASK = (1 << INDEX_SHIFT) - 1;
+    // the most nodes truncate() unlinks with a single CAS
+    private static final int MAX_SPLICE = 1 << 10;
+    // an unpartitioned map counts its entries in 2^COUNT_SHIFT buckets, each covering an equal share of its hash range;
+    // a partition uses fewer, so that together the partitions have as many as one map, but never fewer than 2^MIN_COUNT_SHIFT
+    private static final int COUNT_SHIFT = 14;
+    private static final int MIN_COUNT_SHIFT = 6;
+    // a partition starts with an index of fewer positions, in proportion to its slice, but never fewer than this
+    private static final int MIN_INITIAL_INDEX_LENGTH = 1 << 4;
+    // while rebuilding the filter, we visit FILTER_REBUILD_STEP nodes each time a stripe of our size counter reaches a
+    // multiple of FILTER_REBUILD_CHECK_MASK + 1; see maybeRebuildFilter()
+    private static final int FILTER_REBUILD_CHECK_MASK = (1 << 10) - 1;
+    private static final int FILTER_REBUILD_STEP = 2 << 10;
 
-    private volatile int size;
+    // striped, so that concurrent inserts do not all contend on one cache line
+    private final StripedCounter size;
+    // the number of entries in each count bucket, or null unless constructed with counts; see count()
+    private final AtomicIntegerArray counts;
+    // we have 2^countShift count buckets, each 2^(64-countShift) (scaled) hashes wide
+    private final int countShift;
+    private final long countBucketWidth;
+    // the size at which we next grow the index
+    private volatile int resizeAt;
+    // we only compare our size to resizeAt when our stripe of the size counter is a multiple of (this mask + 1)
+    private volatile int resizeCheckMask;
+    // 1 while some thread is resizing the index, so that concurrent requests to resize collapse into one
+    private volatile int resizing;
+    // incremented by each snapshot; every node is stamped with the epoch current when it was inserted
+    private volatile int epoch = 1;
+    // the number of buckets in the index that have been allocated; only accessed by the resizing thread
+    private int allocatedBuckets = 1;
+    // null unless enabled with -DhashOrderedMetrics=true
+    private final HashOrderedMetrics metrics = HashOrderedMetrics.ENABLED ? new HashOrderedMetrics(this) : null;
+    // the (inclusive) bounds of the hashes we may contain, which span 2^(64-sliceShift) hashes; see scale()
+    private final long minHash, maxHash;
+    private final int sliceShift;
+    // null unless constructed with a bloom filter; nextFilter is non-null only while the filter is being rebuilt
+    private volatile BloomFilter filter, nextFilter;
+    // 1 while some thread is taking a step of the filter's rebuild; see maybeRebuildFilter()
+    private volatile int rebuildingFilter;
+    // the next node the rebuild will add to nextFilter; only accessed by the thread taking a step of the rebuild
+    private Node<K, V> rebuildFrom;
 
     // the predecessor to the whole list - we don't really need to track it independently, but do so for neatness
-    private final Node<K, V> head = new Node<>(Integer.MIN_VALUE, null, null);
+    private final Node<K, V> head = new Node<>(Long.MIN_VALUE, null, null);
 
     /**
      * our index into the linked list; each entry defines the entry-point to a specific slice of the hash range,
@@ -65,24 +118,71 @@ public class NonBlockingHashOrderedMap<K extends Comparable<? super K>, V> imple
      * since our hashCode() is sorted by signed integer comparison, we have to essentially partition this index
      * into two adjacent ranges, which we do by mapping all negative integers to even addresses, and all positive integers
      * to odd addresses
+     *
+     * each position occupies two adjacent slots in its bucket: the node preceding its range, and after it the first node
+     * we found within (or beyond) the range. both share a cache line, so that a lookup for a key that sorts on or after
+     * this first node can begin its walk there, without visiting the predecessor at all
      */
-    private volatile Node<K, V>[][] index = new Node[1][1 << 10];
+    private volatile Node<K, V>[][] index;
+
+    public NonBlockingHashOrderedMap()
+    {
+        this(false);
+    }
+
+    public NonBlockingHashOrderedMap(boolean bloomFilter)
+    {
+        this(bloomFilter, false);
+    }
+
+    // if bloomFilter is true, we maintain a bloom filter so that lookups of absent keys are cheaper, at some cost to inserts;
+    // if counts is true, we count our entries by slice of the hash range so that count(), rank() and splitPoint() need
+    // not visit every entry, at the cost of 64KB and an extra atomic update for every insert and removal
+    public NonBlockingHashOrderedMap(boolean bloomFilter, boolean counts)
     {
+        this(Long.MIN_VALUE, 0, counts);
+        if (bloomFilter)
+            filter = new BloomFilter(resizeAt * 2);
+    }
+
+    // a map that may only contain hashes within the slice [minHash, minHash + 2^(64-sliceShift)), where minHash is
+    // a multiple of the slice's width; used by PartitionedHashOrderedMap
+    NonBlockingHashOrderedMap(long minHash, int sliceShift, boolean counts)
+    {
+        this.minHash = minHash;
+        this.maxHash = minHash + (-1L >>> sliceShift);
+        this.sliceShift = sliceShift;
+
+        // a partition expects only its share of a whole map's threads, entries and counts, so we size our counter,
+        // count buckets and initial index in proportion to our slice; together, empty partitions cost about one map
+        this.size = new StripedCounter(Math.max(1, StripedCounter.stripes() >> sliceShift));
+        this.countShift = Math.max(MIN_COUNT_SHIFT, COUNT_SHIFT - sliceShift);
+        this.countBucketWidth = 1L << (64 - countShift);
+        this.counts = counts ? new AtomicIntegerArray(1 << countShift) : null;
+
+        int indexLength = Math.max(MIN_INITIAL_INDEX_LENGTH, (1 << 10) >> sliceShift);
+        this.resizeAt = resizeThreshold(indexLength);
+        this.resizeCheckMask = resizeCheckMask(resizeAt, size.stripeCount());
+        Node<K, V>[][] index = new Node[1][indexLength * 2];
         // insert the head into the first location in the index; all other index locations will be populated
         // by chained back-reference to the initial seed.
         // this particular item is the only one in the index to not honour index[i].hash < firstHashOfIndex(i),
         // however it honours the condition that it sorts before all items in the bucket, which is effectively the same
         index[0][0] = head;
+        this.index = index;
     }
 
     private static final class Node<K extends Comparable<? super K>, V> implements Map.Entry<K, V>
     {
-        final int hash;
+        final long hash;
         final K key;
-        final V value;
+        // null once the node has been removed; the head and markers also have a null value
+        volatile V value;
         volatile Node<K, V> next;
+        // the map's epoch when this node was inserted, or zero if it has only just been linked into the list
+        volatile int epoch;
 
-        private Node(int hash, K key, V value)
+        private Node(long hash, K key, V value)
         {
             this.hash = hash;
             this.key = key;
@@ -101,12 +201,29 @@ public class NonBlockingHashOrderedMap<K extends Comparable<? super K>, V> imple
 
         public V setValue(V value)
         {
-            throw new UnsupportedOperationException();
+            if (value == null)
+                throw new IllegalArgumentException();
+            while (true)
+            {
+                V prev = this.value;
+                // as with ConcurrentSkipListMap, an entry that has been removed cannot be updated
+                if (prev == null)
+                    throw new IllegalStateException();
+                if (valueUpdater.compareAndSet(this, prev, value))
+                    return prev;
+            }
         }
 
-        int compareTo(int hash, K key)
+        // a marker is appended to a removed node to prevent any insertion directly after it; markers are the only
+        // nodes with a null key to be found by following a next pointer, as the head is never anybody's successor
+        boolean isMarker()
         {
-            int r = Integer.compare(this.hash, hash);
+            return key == null;
+        }
+
+        int compareTo(long hash, K key)
+        {
+            int r = Long.compare(this.hash, hash);
             if (r != 0)
                 return r;
             if (this.key == null)
@@ -119,27 +236,97 @@ public class NonBlockingHashOrderedMap<K extends Comparable<? super K>, V> imple
     {
         if (value == null)
             throw new IllegalArgumentException();
-        int hash = key.hashCode();
+        long hash = hash(key);
+        Node<K, V> pred = start(hash, key);
+        if (pred.compareTo(hash, key) == 0)
+        {
+            V existing = pred.value;
+            if (existing != null)
+            {
+                stamp(pred);
+                return existing;
+            }
+            pred = predecessor(hash);
+        }
         // may not be direct predecessor, but will be _a_ predecessor
-        Node<K, V> pred = predecessor(hash);
-        Node<K, V> newNode = new Node<>(hash, key, value);
+        return putIfAbsent(pred, new Node<>(hash, key, value));
+    }
+
+    public int putAllSorted(K[] keys, V[] values, int offset, int count)
+    {
+        // the hash distance covered by one index position; if the next key is further than this from our last
+        // insertion point, we expect a lookup in the index to be cheaper than walking the list to reach it
+        long maxWalk = (1L << 32) / indexLength(index);
+        int inserted = 0;
+        Node<K, V> pred = head;
+        for (int i = offset, end = offset + count ; i < end ; i++)
+        {
+            K key = keys[i];
+            V value = values[i];
+            if (value == null)
+                throw new IllegalArgumentException();
+            long hash = hash(key);
+            // resume from our last insertion point, unless the next key is too far ahead of it, or is not ahead
+            // of it at all (because the input was not sorted after all)
+            if (prefix(scale(hash)) - (long) prefix(scale(pred.hash)) > maxWalk || pred.compareTo(hash, key) >= 0)
+                pred = predecessor(hash);
+            Node<K, V> newNode = new Node<>(hash, key, value);
+            if (putIfAbsent(pred, newNode) == null)
+            {
+                inserted++;
+                pred = newNode;
+            }
+        }
+        return inserted;
+    }
+
+    // insert newNode after pred (or whichever node follows it that directly precedes newNode),
+    // unless its key is already present, in which case the existing value is returned
+    private V putIfAbsent(Node<K, V> pred, Node<K, V> newNode)
+    {
+        long hash = newNode.hash;
+        K key = newNode.key;
+        addToFilter(hash);
         while (true)
         {
             Node<K, V> next = pred.next;
-            int c = next == null ? 1 : next.compareTo(hash, key);
-            if (c >= 0)
+            int c = 1;
+            if (next != null)
             {
+                V existing = next.value;
+                if (existing == null)
+                {
+                    // either next has been removed, or it is a marker and pred has been removed;
+                    // help complete any removal, then start again from a fresh predecessor
+                    if (!next.isMarker())
+                        helpRemove(pred, next);
+                    pred = predecessor(hash);
+                    continue;
+                }
+                c = next.compareTo(hash, key);
                 if (c == 0)
-                    return next.value;
+                {
+                    stamp(next);
+                    return existing;
+                }
+            }
+            if (c > 0)
+            {
                 // next is after the node we want to insert, so attempt to insert our new node here
                 nextUpdater.lazySet(newNode, next);
                 if (nextUpdater.compareAndSet(pred, next, newNode))
                 {
-                    // if we succeeded, update size and maybe trigger a resize
-                    maybeResize(sizeUpdater.incrementAndGet(this));
+                    // if we succeeded, stamp our node with its epoch, update size and maybe trigger a resize
+                    stamp(newNode);
+                    addToFilter(hash);
+                    if (counts != null)
+                        counts.incrementAndGet(countBucket(hash));
+                    maybeResize(size.add(1));
                     return null;
                 }
                 // if we failed, we want to continue from the same predecessor, as we may still want to insert here
+                if (HashOrderedMetrics.ENABLED)
+                    metrics.insertCasFailure();
             }
             else
             {
@@ -149,26 +336,209 @@ public class NonBlockingHashOrderedMap<K extends Comparable<? super K>, V> imple
         }
     }
 
+    public V remove(K key)
+    {
+        return removeIfMatches(key, null);
+    }
+
+    public boolean remove(K key, V value)
+    {
+        return value != null && removeIfMatches(key, value) != null;
+    }
+
+    // remove the mapping for key if its value equals expect, or unconditionally if expect is null
+    private V removeIfMatches(K key, V expect)
+    {
+        long hash = hash(key);
+        while (true)
+        {
+            Node<K, V> pred = predecessor(hash);
+            while (true)
+            {
+                Node<K, V> node = pred.next;
+                if (node == null)
+                    return null;
+                V value = node.value;
+                if (value == null)
+                {
+                    if (!node.isMarker())
+                        helpRemove(pred, node);
+                    break;
+                }
+                int c = node.compareTo(hash, key);
+                if (c > 0)
+                    return null;
+                if (c < 0)
+                {
+                    pred = node;
+                    continue;
+                }
+                stamp(node);
+                if (expect != null && !expect.equals(value))
+                    return null;
+                // the removal takes effect once we null the value; everything after is tidying up
+                if (valueUpdater.compareAndSet(node, value, null))
+                {
+                    size.add(-1);
+                    if (counts != null)
+                        counts.decrementAndGet(countBucket(hash));
+                    helpRemove(pred, node);
+                    return value;
+                }
+                // if we failed, somebody else modified the node, so re-read it from the same predecessor
+            }
+        }
+    }
+
+    // node has been removed, so ensure it is followed by a marker and attempt to unlink the pair from pred;
+    // if either pred or node has been modified concurrently we give up, and leave it for the caller to retry
+    private void helpRemove(Node<K, V> pred, Node<K, V> node)
+    {
+        Node<K, V> next = node.next;
+        if (next == null || !next.isMarker())
+        {
+            Node<K, V> marker = new Node<>(node.hash, null, null);
+            nextUpdater.lazySet(marker, next);
+            if (!nextUpdater.compareAndSet(node, next, marker))
+                return;
+            next = marker;
+        }
+        nextUpdater.compareAndSet(pred, node, next.next);
+    }
+
+    // updates to an existing value are made by CAS on the node's value; a removal also nulls the value by CAS,
+    // so an update either happens before the removal, or finds the node removed and looks up the key again
+    public boolean replace(K key, V oldValue, V newValue)
+    {
+        if (newValue == null)
+            throw new IllegalArgumentException();
+        while (true)
+        {
+            Node<K, V> node = find(key);
+            if (node == null)
+                return false;
+            V value;
+            while (null != (value = node.value))
+            {
+                if (!value.equals(oldValue))
+                    return false;
+                if (valueUpdater.compareAndSet(node, value, newValue))
+                    return true;
+            }
+        }
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remapping)
+    {
+        while (true)
+        {
+            Node<K, V> node = find(key);
+            if (node == null)
+                return null;
+            V value;
+            while (null != (value = node.value))
+            {
+                V newValue = remapping.apply(key, value);
+                if (newValue == null)
+                    throw new IllegalArgumentException();
+                if (valueUpdater.compareAndSet(node, value, newValue))
+                    return newValue;
+            }
+        }
+    }
+
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remapping)
+    {
+        if (value == null)
+            throw new IllegalArgumentException();
+        while (true)
+        {
+            Node<K, V> node = find(key);
+            if (node == null)
+            {
+                if (putIfAbsent(key, value) == null)
+                    return value;
+                continue;
+            }
+            V oldValue;
+            while (null != (oldValue = node.value))
+            {
+                V newValue = remapping.apply(oldValue, value);
+                if (newValue == null)
+                    throw new IllegalArgumentException();
+                if (valueUpdater.compareAndSet(node, oldValue, newValue))
+                    return newValue;
+            }
+        }
+    }
+
+    // find the live node for key, if any, helping any removal we encounter on the way
+    private Node<K, V> find(K key)
+    {
+        long hash = hash(key);
+        if (definitelyAbsent(hash))
+            return null;
+        Node<K, V> pred = start(hash, key);
+        if (pred.compareTo(hash, key) == 0)
+        {
+            // the index led us straight to the node, which was live when we visited it
+            stamp(pred);
+            return pred;
+        }
+        while (true)
+        {
+            while (true)
+            {
+                Node<K, V> node = pred.next;
+                if (node == null)
+                    return null;
+                if (node.value == null)
+                {
+                    if (!node.isMarker())
+                        helpRemove(pred, node);
+                    break;
+                }
+                int c = node.compareTo(hash, key);
+                if (c > 0)
+                    return null;
+                if (c == 0)
+                {
+                    stamp(node);
+                    return node;
+                }
+                pred = node;
+            }
+            pred = predecessor(hash);
+        }
+    }
+
     public V get(K key)
     {
-        int hash = key.hashCode();
-        // may not be direct predecessor, but will be _a_ predecessor
-        Node<K, V> node = predecessor(hash).next;
+        long hash = hash(key);
+        if (definitelyAbsent(hash))
+            return null;
+        // may be the node itself, or any node before it
+        Node<K, V> node = start(hash, key);
         while (node != null)
         {
             int c = node.compareTo(hash, key);
-            if (c >= 0)
-                return c == 0 ? node.value : null;
+            if (c > 0)
+                return null;
+            if (c == 0)
+            {
+                stamp(node);
+                return node.value;
+            }
             node = node.next;
         }
         return null;
     }
 
     // find the node directly preceding the provided hash; always non-null return
-    private Node<K, V> predecessor(int hash)
+    private Node<K, V> predecessor(long hash)
     {
         Node<K, V>[][] index = this.index;
-        int indexHash = indexHash(hash);
+        int indexHash = indexHash(prefix(scale(hash)));
         int indexMask = indexLength(index) - 1;
         int i = indexHash & indexMask;
         Node<K, V> node;
@@ -182,17 +552,17 @@ public class NonBlockingHashOrderedMap<K extends Comparable<? super K>, V> imple
                 i &= indexMask;
                 indexBucket = index[i >> INDEX_SHIFT];
             }
-            node = indexBucket[i & INDEX_BUCKET_MASK];
+            node = indexBucket[slot(i)];
         }
-        if (node == null)
+        if (!isLive(node))
         {
-            // if there's no index entry, remove the most significant bits from the index position
-            // to find the nearest prior index entry
+            // if there's no index entry (or it has been removed), remove the most significant bits from the index
+            // position to find the nearest prior index entry
             int j = i;
-            while (node == null)
+            while (!isLive(node))
             {
                 j ^= Integer.highestOneBit(j);
-                node = index[j >> INDEX_SHIFT][j & INDEX_BUCKET_MASK];
+                node = index[j >> INDEX_SHIFT][slot(j)];
             }
             // then reintroduce the bits, populating the index buckets as we go
             while (j != i)
@@ -206,44 +576,135 @@ public class NonBlockingHashOrderedMap<K extends Comparable<? super K>, V> imple
             node = scrollToBucket(i, node, node, index);
         }
 
-        // walk forward until the next node's hash is >= the provided hash
+        // walk forward until the next node's hash is >= the provided hash, never stopping on a removed node
+        int walk = 0;
         for (Node<K, V> next = node.next ; next != null && next.hash < hash ; next = next.next)
-            node = next;
+        {
+            if (next.value != null)
+                node = next;
+            walk++;
+        }
+        if (HashOrderedMetrics.ENABLED)
+            metrics.predecessor(walk);
         return node;
     }
 
+    private boolean isLive(Node<K, V> node)
+    {
+        return node != null && (node.value != null || node == head);
+    }
+
     // walk forwards until we find the true predecessor of the range we should find from the given bucket
     // and update the index if necessary
     private Node<K, V> scrollToBucket(int i, Node<K, V> node, Node<K, V> exp, Node<K, V>[][] index)
     {
         Node<K, V> result = node;
-        int bucketStart = firstHashOfIndex(i);
-        for (Node<K, V> next = node.next ; next != null && next.hash < bucketStart ; next = next.next)
-            result = next;
-        if (result != exp)
+        long bucketStart = unscale((long) firstHashOfIndex(i) << 32);
+        Node<K, V> next = node.next;
+        for ( ; next != null && next.hash < bucketStart ; next = next.next)
+            if (next.value != null)
+                result = next;
+        Node[] indexBucket = index[i >> INDEX_SHIFT];
+        if (indexBucket != null)
         {
-            Node[] indexBucket = index[i >> INDEX_SHIFT];
-            if (indexBucket != null)
-                indexBucket[i & INDEX_BUCKET_MASK] = result;
+            int slot = slot(i);
+            if (result != exp)
+            {
+                indexBucket[slot] = result;
+                if (HashOrderedMetrics.ENABLED)
+                    metrics.indexRepair();
+            }
+            // the first node is only a hint, so we don't mind racing with other writers; but as with the
+            // predecessor, we avoid writing to the index unless it has changed
+            if (next != null && next.value != null && indexBucket[slot + 1] != next)
+                indexBucket[slot + 1] = next;
         }
         return result;
     }
 
+    // a node that sorts on or before the provided hash and key, and was live when we visited it, from which to walk
+    // forwards in search of the key; if the first node of the hash's index position qualifies, we can skip
+    // visiting its predecessor, which in a large map is likely a cache miss
+    private Node<K, V> start(long hash, K key)
+    {
+        Node<K, V>[][] index = this.index;
+        int i = indexHash(prefix(scale(hash))) & (indexLength(index) - 1);
+        Node<K, V>[] indexBucket = index[i >> INDEX_SHIFT];
+        if (indexBucket != null)
+        {
+            Node<K, V> first = indexBucket[slot(i) + 1];
+            if (first != null && first.value != null && first.compareTo(hash, key) <= 0)
+                return first;
+        }
+        return predecessor(hash);
+    }
+
+    // the slot in its bucket of the predecessor for an index position; its first node occupies the following slot
+    private static int slot(int position)
+    {
+        return (position & INDEX_BUCKET_MASK) << 1;
+    }
+
     private static int indexLength(Node<?, ?>[][] index)
     {
-        return index.length == 1 ? index[0].length : index.length << INDEX_SHIFT;
+        return index.length == 1 ? index[0].length >> 1 : index.length << INDEX_SHIFT;
+    }
+
+    /**
+     * Keys may implement this to be sorted (and indexed) by a full 64-bit hash, rather than by the 32-bit prefix
+     * returned by hashCode(); for two such keys k1, k2: k1 < k2 => k1.token() <= k2.token()
+     */
+    public static interface Token
+    {
+        public long token();
+    }
+
+    // the full hash we sort a key by
+    static long hash(Object key)
+    {
+        return key instanceof Token ? ((Token) key).token() : (long) key.hashCode() << 32;
+    }
+
+    // the full hash of an entry's key, read from our own nodes without touching the key
+    static long hash(Map.Entry<?, ?> entry)
+    {
+        return entry instanceof Node ? ((Node<?, ?>) entry).hash : hash(entry.getKey());
+    }
+
+    // the 32-bit prefix of a full hash, that we index on
+    static int prefix(long hash)
+    {
+        return (int) (hash >> 32);
+    }
+
+    // the position of a hash within the slice of hashes we may contain, scaled up to span the whole (signed) range,
+    // so that a map containing only a slice of the hash space still makes full use of its index. hashes outside the
+    // slice are clamped to its bounds. for a map that may contain any hash, this is the identity
+    private long scale(long hash)
+    {
+        if (hash < minHash)
+            return Long.MIN_VALUE;
+        if (hash > maxHash)
+            return Long.MAX_VALUE;
+        return ((hash - minHash) << sliceShift) + Long.MIN_VALUE;
+    }
+
+    // the inverse of scale(), for hashes within our slice
+    private long unscale(long scaled)
+    {
+        return ((scaled - Long.MIN_VALUE) >>> sliceShift) + minHash;
     }
 
     // convert a hash into the key we use for index lookups, by reversing its bits
     // since the index is sign partitioned, we ignore the sign bit from the reverse and shift it to the bottom result bit
-    private static int indexHash(int hash)
+    static int indexHash(int hash)
     {
         return (Integer.reverse(hash) << 1) | ((hash >>> 31) ^ 1);
     }
 
     // convert an index position into a lower-bound for the hashes it should index into
     // since the index is sign partitioned, we the least significant bit defines the sign of the hash we're indexing into
-    private static int firstHashOfIndex(int position)
+    static int firstHashOfIndex(int position)
     {
         return (Integer.reverse(position) << 1) | ((position ^ 1) << 31);
     }
@@ -251,116 +712,1096 @@ public class NonBlockingHashOrderedMap<K extends Comparable<? super K>, V> imple
     // find the first node that is equal to or greater than key
     private Node<K, V> onOrAfter(K key)
     {
-        int hash = key.hashCode();
+        long hash = hash(key);
         Node<K, V> node = predecessor(hash);
-        while (node != null && node.compareTo(hash, key) < 0)
+        while (node != null && (node.value == null || node.compareTo(hash, key) < 0))
             node = node.next;
         return node;
     }
 
-    public int size()
+    // the entries we return are our own nodes, so their value becomes null if they are later removed
+    public Map.Entry<K, V> ceilingEntry(K key)
+    {
+        return firstLive(onOrAfter(key));
+    }
+
+    public Map.Entry<K, V> higherEntry(K key)
+    {
+        Node<K, V> node = onOrAfter(key);
+        if (node != null && node.compareTo(hash(key), key) == 0)
+            node = node.next;
+        return firstLive(node);
+    }
+
+    public Map.Entry<K, V> floorEntry(K key)
+    {
+        return lastLive(hash(key), key, true);
+    }
+
+    public Map.Entry<K, V> lowerEntry(K key)
+    {
+        return lastLive(hash(key), key, false);
+    }
+
+    public Map.Entry<K, V> firstEntry()
     {
-        return size;
+        return firstLive(head.next);
     }
 
-    private void maybeResize(int size)
+    public Map.Entry<K, V> lastEntry()
     {
-        // => 1.5*size == X * index.length (where hopefully X is 1)
-        // => index 66% full
-        if (((size + (size / 2)) & (index.length - 1)) == 0)
-            resize(size * 2);
+        return lastLive(maxHash, null, true);
+    }
+
+    // the first live node from node onwards, if any, stamped for any snapshot
+    private Node<K, V> firstLive(Node<K, V> node)
+    {
+        while (node != null && node.value == null)
+            node = node.next;
+        if (node != null)
+            stamp(node);
+        return node;
     }
 
-    // we perform the resize asynchronously; all we do is allocate a suitably large copy of the existing index
-    // and let the readers/writers lazily populate it
-    // TODO: since we have a 2d array for the index, we can easily support non-doubling growth - possibly even linear
-    // this would not provide even distribution of the extra indexing capacity, but would spread the cost of filling in
-    private void resize(final int targetSize)
+    // the last live node that sorts before hash/key (or on it, if inclusive); a null key sorts after every key
+    // with the same hash
+    private Node<K, V> lastLive(long hash, K key, boolean inclusive)
     {
-        resizer.execute(new Runnable()
+        while (true)
         {
-            public void run()
+            Node<K, V> node = predecessor(hash);
+            for (Node<K, V> next = node.next ; next != null ; next = next.next)
             {
-                Node<K, V>[][] resize = index;
-                int cur = indexLength(resize);
-                int len = cur;
-                while (len < targetSize)
-                    len *= 2;
-                if (cur != len)
-                {
-                    resize = Arrays.copyOf(resize, Math.max(1, len >> INDEX_SHIFT));
-                    if (cur < 1 << INDEX_SHIFT)
-                        resize[0] = Arrays.copyOf(resize[0], Math.min(len, 1 << INDEX_SHIFT));
-                    // we write to index after every update of its internal array to ensure visibility ASAP
-                    index = resize;
-                    for (int i = Math.max(1, cur >> INDEX_SHIFT) ; i != resize.length ; i++)
-                    {
-                        resize[i] = new Node[1 << INDEX_SHIFT];
-                        index = resize;
-                    }
-                }
+                int c = key == null ? Long.compare(next.hash, hash) : next.compareTo(hash, key);
+                if (c > 0 || (c == 0 && !inclusive))
+                    break;
+                if (next.value != null)
+                    node = next;
+            }
+            if (node == head)
+                return null;
+            if (node.value != null)
+            {
+                stamp(node);
+                return node;
             }
-        });
+            // the node was removed since we visited it, so look again
+        }
     }
 
-    // bounds are always inclusive
-    public Iterable<Map.Entry<K, V>> range(final K lb, final K ub)
+    public int size()
     {
-        final int ubHash = ub == null ? Integer.MAX_VALUE : ub.hashCode();
-        return new Iterable<Map.Entry<K, V>>()
+        return size.sum();
+    }
+
+    /**
+     * The number of entries in the range (as defined by range(lb, ub)). We sum the counts of the buckets wholly within
+     * the range, and walk the list only for those parts of the range in the (at most two) buckets containing its
+     * bounds, so that the cost is proportional to the number of buckets the range covers, plus the entries of two
+     * buckets. As with size(), the count may not reflect modifications made while it is computed. If we were
+     * constructed without counts, we walk the whole range.
+     *
+     * Counts are of the live map, and are not isolated by any snapshot: the bucket counts include every insert
+     * stamped so far, whatever its epoch. To count the entries visible to a snapshot, iterate its range. Any entry we
+     * walk past is stamped as by any other read, so that a count cannot observe an insert a later snapshot omits.
+     */
+    public int count(K lb, K ub)
+    {
+        long lbHash = lb == null ? minHash : hash(lb);
+        long ubHash = ub == null ? maxHash : hash(ub);
+        if (counts == null)
+            return walkCount(lbHash, lb, ubHash, ub);
+        int first = countBucket(lbHash), last = countBucket(ubHash);
+        if (first > last)
+            return 0;
+        if (first == last && (lb != null || ub != null))
+            return walkCount(lbHash, lb, ubHash, ub);
+
+        long count = lb == null ? counts.get(first) : walkCount(lbHash, lb, firstHashOfCountBucket(first + 1) - 1, null);
+        for (int i = first + 1 ; i < last ; i++)
+            count += counts.get(i);
+        count += ub == null ? counts.get(last) : walkCount(firstHashOfCountBucket(last), null, ubHash, ub);
+        // a removal may be counted before the insert it removes
+        return (int) Math.max(0, count);
+    }
+
+    // the number of live entries between the bounds, found by walking the list
+    private int walkCount(long lbHash, K lb, long ubHash, K ub)
+    {
+        int count = 0;
+        for (Node<K, V> node = predecessor(lbHash).next ; node != null && !after(node, ubHash, ub) ; node = node.next)
         {
-            public Iterator<Map.Entry<K, V>> iterator()
+            if (node.value != null && !before(node, lbHash, lb))
             {
-                return new Iterator<Map.Entry<K, V>>()
-                {
-                    Node<K, V> node = lb == null ? head.next : onOrAfter(lb);
-                    public boolean hasNext()
-                    {
-                        return node != null && (ub == null || node.compareTo(ubHash, ub) <= 0);
-                    }
+                stamp(node);
+                count++;
+            }
+        }
+        return count;
+    }
 
-                    public Map.Entry<K, V> next()
-                    {
-                        Node<K, V> r = node;
-                        node = node.next;
-                        return r;
-                    }
+    /**
+     * An estimate of the number of entries that sort before key, from the bucket counts alone: the counts of every
+     * bucket before the key's, plus a share of the count of its own bucket, in proportion to its position within it.
+     * As with count(), this is of the live map, not of any snapshot. Only available if we were constructed with counts.
+     *
+     * For a key in the upper half of our range we instead subtract the buckets after the key's from our size, so that
+     * we never read more than half of the 2^countShift bucket counts (plus the stripes of our size).
+     */
+    public int rank(K key)
+    {
+        if (counts == null)
+            throw new IllegalStateException("rank() requires a map constructed with counts");
+        long scaled = scale(hash(key)) ^ Long.MIN_VALUE;
+        int bucket = (int) (scaled >>> (64 - countShift));
+        long rank;
+        if (bucket < 1 << (countShift - 1))
+        {
+            rank = 0;
+            for (int i = 0 ; i < bucket ; i++)
+                rank += counts.get(i);
+        }
+        else
+        {
+            rank = size.sum() - Math.max(0, counts.get(bucket));
+            for (int i = bucket + 1 ; i < 1 << countShift ; i++)
+                rank -= counts.get(i);
+        }
+        rank += share(bucket, scaled & (countBucketWidth - 1), countBucketWidth);
+        return (int) Math.max(0, rank);
+    }
 
-                    public void remove()
-                    {
-                        throw new UnsupportedOperationException();
-                    }
-                };
+    /**
+     * A key in the range (as defined by range(lb, ub)) that approximately halves it, i.e. such that about half of the
+     * entries in the range sort before it; or null if the range is empty. As with rank(), we estimate from the bucket
+     * counts, so we visit only the entries between the point we estimate and the first key at or after it. As with
+     * count(), the estimate is of the live map, not of any snapshot. Only available if we were constructed with counts;
+     * we read the counts of the buckets the range covers twice, so up to 2^(countShift+1) counts for the whole map.
+     */
+    public K splitPoint(K lb, K ub)
+    {
+        if (counts == null)
+            throw new IllegalStateException("splitPoint() requires a map constructed with counts");
+        long lbHash = lb == null ? minHash : hash(lb);
+        long ubHash = ub == null ? maxHash : hash(ub);
+        // the unsigned offsets of the bounds from the start of our (scaled) hash range
+        long lbScaled = scale(lbHash) ^ Long.MIN_VALUE, ubScaled = scale(ubHash) ^ Long.MIN_VALUE;
+        int first = (int) (lbScaled >>> (64 - countShift)), last = (int) (ubScaled >>> (64 - countShift));
+
+        // the estimated count of the range, taking a share of the end buckets in proportion to the range they cover
+        double total = 0;
+        for (int i = first ; i <= last ; i++)
+            total += bucketShare(i, first, last, lbScaled, ubScaled);
+
+        // find the bucket containing the midpoint, and interpolate within it
+        double remaining = total / 2;
+        long split = ubScaled;
+        for (int i = first ; i <= last ; i++)
+        {
+            double share = bucketShare(i, first, last, lbScaled, ubScaled);
+            if (share > 0 && share >= remaining)
+            {
+                long start = i == first ? lbScaled & (countBucketWidth - 1) : 0;
+                long end = i == last ? (ubScaled & (countBucketWidth - 1)) + 1 : countBucketWidth;
+                split = ((long) i << (64 - countShift)) + start + (long) ((end - start) * (remaining / share));
+                break;
             }
-        };
+            remaining -= share;
+        }
+        long splitHash = Math.max(lbHash, Math.min(ubHash, unscale(split ^ Long.MIN_VALUE)));
+
+        // the first live entry at or after the split point, or failing that the last before it, if within the range
+        Node<K, V> node = predecessor(splitHash).next;
+        while (node != null && (node.value == null || node.hash < splitHash || before(node, lbHash, lb)))
+            node = node.next;
+        if (node != null && !after(node, ubHash, ub))
+        {
+            stamp(node);
+            return node.key;
+        }
+        Node<K, V> floor = lastLive(ubHash, ub, true);
+        return floor == null || before(floor, lbHash, lb) ? null : floor.key;
     }
 
-    public void clear()
+    // the estimated number of entries of bucket i within the range, for a range spanning buckets first to last
+    private double bucketShare(int i, int first, int last, long lbScaled, long ubScaled)
     {
-        for (Node[] table : index)
-            Arrays.fill(table, null);
-        for (Node node = head, next = node.next; next != null ; node = next, next = next.next)
-            node.next = null;
+        long start = i == first ? lbScaled & (countBucketWidth - 1) : 0;
+        long end = i == last ? (ubScaled & (countBucketWidth - 1)) + 1 : countBucketWidth;
+        return share(i, start, end);
     }
 
-    public boolean valid()
+    // the share of bucket i's count we expect between the offsets start and end within it, if its hashes are uniform
+    private double share(int i, long start, long end)
     {
-        Node prev = head;
-        for (Node n = prev.next ; n != null ; n = n.next)
-            if (prev.compareTo(n.hash, n.key) >= 0 || predecessor(n.hash).next.hash != n.hash)
-                return false;
-        return true;
+        return Math.max(0, counts.get(i)) * ((end - start) / (double) countBucketWidth);
     }
 
-    private static final AtomicIntegerFieldUpdater<NonBlockingHashOrderedMap> sizeUpdater = AtomicIntegerFieldUpdater.newUpdater(NonBlockingHashOrderedMap.class, "size");
-    private static final AtomicReferenceFieldUpdater<Node, Node> nextUpdater = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
-    private static final ExecutorService resizer = Executors.newFixedThreadPool(1, new ThreadFactory()
+    // the count bucket containing hash
+    private int countBucket(long hash)
+    {
+        return (int) ((scale(hash) ^ Long.MIN_VALUE) >>> (64 - countShift));
+    }
+
+    // the first hash within the count bucket
+    private long firstHashOfCountBucket(int bucket)
+    {
+        return unscale(((long) bucket << (64 - countShift)) ^ Long.MIN_VALUE);
+    }
+
+    // resizing is cooperative: whichever inserting thread first crosses the threshold performs the next step of
+    // the resize, and any others that cross it in the meantime simply carry on; since each step is small, this costs
+    // the resizing thread little, and the index never waits behind the resizes of any other map.
+    // since summing our size touches every stripe of the counter, each thread only does so every so often, so that
+    // we may resize a little late, but by at most a small fraction of the threshold.
+    // rebuilding the filter is cooperative in the same way, but separately, so that a step of one never delays the other
+    private void maybeResize(int stripeSize)
     {
-        public Thread newThread(Runnable r)
+        if ((stripeSize & resizeCheckMask) == 0 && size.sum() >= resizeAt && resizingUpdater.compareAndSet(this, 0, 1))
+        {
+            try
+            {
+                resize();
+            }
+            finally
+            {
+                resizing = 0;
+            }
+        }
+        if (filter != null && (stripeSize & FILTER_REBUILD_CHECK_MASK) == 0 && rebuildingFilterUpdater.compareAndSet(this, 0, 1))
         {
-            Thread t = new Thread(r);
-            t.setDaemon(true);
-            return t;
+            try
+            {
+                maybeRebuildFilter();
+            }
+            finally
+            {
+                rebuildingFilter = 0;
+            }
         }
-    });
+    }
+
+    // we resize one step at a time, keeping the index at most 66% full, and letting readers/writers lazily populate it.
+    // while the index fits in a single bucket we simply double it, but thereafter we allocate just one extra bucket
+    // per step, so that the cost of both allocating and lazily populating the extra capacity is spread evenly
+    // as the map grows. we only double the outer array once all of its buckets are allocated, so that it is always
+    // at least half full, which predecessor() depends on to fall back from a null bucket to its allocated parent
+    private void resize()
+    {
+        Node<K, V>[][] resize = index;
+        int capacity = allocatedLength(resize);
+        int size = this.size.sum();
+        if ((long) size * 3 <= (long) capacity * 2)
+            return;
+        long start = HashOrderedMetrics.ENABLED ? System.nanoTime() : 0;
+
+        if (resize.length == 1 && resize[0].length < 2 << INDEX_SHIFT)
+        {
+            resize = new Node[][] { Arrays.copyOf(resize[0], resize[0].length * 2) };
+            index = resize;
+        }
+        else
+        {
+            int buckets = allocatedBuckets;
+            if (buckets == resize.length)
+            {
+                resize = Arrays.copyOf(resize, buckets * 2);
+                index = resize;
+            }
+            resize[buckets] = new Node[2 << INDEX_SHIFT];
+            // we write to index after every update of its internal array to ensure visibility ASAP
+            index = resize;
+            allocatedBuckets = buckets + 1;
+        }
+        if (HashOrderedMetrics.ENABLED)
+            metrics.resize(System.nanoTime() - start, Math.max(0, size - resizeAt));
+        resizeAt = resizeThreshold(allocatedLength(resize));
+        resizeCheckMask = resizeCheckMask(resizeAt, this.size.stripeCount());
+    }
+
+    /**
+     * Every insert adds its hash to the filter both before and after it links its node into the list: before, so that
+     * any lookup that could find the node will find its hash in the filter; and after, in case the filter is being
+     * rebuilt, so that the hash also reaches the filter that replaces it.
+     *
+     * We read nextFilter before filter, and add the hash to both. If nextFilter is non-null, the filter being rebuilt
+     * receives our hash directly, whether or not the rebuild has yet published it. If it is null, either the
+     * rebuild has not yet begun, so its walk of the list will find our (already linked) node; or it has finished, in
+     * which case it published its filter before clearing nextFilter, so our read of filter returns the rebuilt filter
+     * (or a later one). Either way, once an insert returns, its hash is in the current filter.
+     *
+     * Adding a hash that is already present only reads the filter, so the second addition is cheap.
+     */
+    private void addToFilter(long hash)
+    {
+        BloomFilter next = this.nextFilter;
+        BloomFilter filter = this.filter;
+        if (filter == null)
+            return;
+        filter.add(hash);
+        if (next != null)
+            next.add(hash);
+    }
+
+    private boolean definitelyAbsent(long hash)
+    {
+        BloomFilter filter = this.filter;
+        return filter != null && !filter.mightContain(hash);
+    }
+
+    /**
+     * Once we hold half as many keys as our filter was sized for, we begin to replace it with a filter sized for four
+     * times as many keys as we hold, built by walking the list. Since we never remove hashes from the filter, this
+     * also drops any keys removed since the last rebuild.
+     *
+     * So that no insert waits behind a walk of the whole list, the walk is taken a step of FILTER_REBUILD_STEP nodes at
+     * a time, by whichever thread's inserts next bring its stripe of the size counter to a multiple of
+     * FILTER_REBUILD_CHECK_MASK + 1. We so visit around two nodes for each insert, and since the list holds around
+     * half the filter's capacity when we begin, we expect to finish about when the map reaches the capacity of the
+     * filter we are replacing.
+     *
+     * Between steps we keep our place as the next node to visit. Since a removed node is followed by a marker before it
+     * is unlinked, nothing is inserted after it once removed, so following it still reaches every node after it that
+     * was linked before the rebuild began; any node linked since adds its own hash to nextFilter (see addToFilter()).
+     */
+    private void maybeRebuildFilter()
+    {
+        BloomFilter rebuild = nextFilter;
+        Node<K, V> node;
+        if (rebuild == null)
+        {
+            int size = this.size.sum();
+            if (size <= filter.capacity() / 2)
+                return;
+            rebuild = new BloomFilter((int) Math.min(Integer.MAX_VALUE, size * 4L));
+            nextFilter = rebuild;
+            node = head.next;
+        }
+        else
+        {
+            node = rebuildFrom;
+        }
+
+        for (int i = 0 ; i < FILTER_REBUILD_STEP && node != null ; i++, node = node.next)
+        {
+            if (node.value != null)
+                rebuild.add(node.hash);
+        }
+
+        if (node != null)
+        {
+            rebuildFrom = node;
+            return;
+        }
+        rebuildFrom = null;
+        this.filter = rebuild;
+        nextFilter = null;
+    }
+
+    // the number of index positions with a non-null bucket
+    private int allocatedLength(Node<?, ?>[][] index)
+    {
+        return index.length == 1 ? index[0].length >> 1 : allocatedBuckets << INDEX_SHIFT;
+    }
+
+    static int resizeThreshold(int indexLength)
+    {
+        return (int) Math.min(Integer.MAX_VALUE, (indexLength * 2L) / 3);
+    }
+
+    // a mask for checking the size every 2^n inserts to a stripe, such that the inserts we may miss across all stripes
+    // (up to 2^n per stripe) total no more than an eighth of the resize threshold
+    static int resizeCheckMask(int resizeAt)
+    {
+        return resizeCheckMask(resizeAt, StripedCounter.stripes());
+    }
+
+    static int resizeCheckMask(int resizeAt, int stripes)
+    {
+        return Integer.highestOneBit(Math.max(1, resizeAt / (8 * stripes))) - 1;
+    }
+
+    // the number of entries by which we have outgrown our index; used to measure how promptly we resize
+    int resizeLag()
+    {
+        return Math.max(0, size.sum() - resizeAt);
+    }
+
+    // null unless enabled with -DhashOrderedMetrics=true
+    HashOrderedMetrics metrics()
+    {
+        return metrics;
+    }
+
+    // the remaining methods expose our internals to HashOrderedInternals, which measures them in isolation
+
+    Map.Entry<K, V> predecessorEntry(long hash)
+    {
+        return predecessor(hash);
+    }
+
+    // the number of index positions in use, i.e. those with a non-null bucket
+    int indexLength()
+    {
+        return allocatedLength(index);
+    }
+
+    // the first (scaled) prefix of the index position that predecessor() uses for a (scaled) prefix; since only the
+    // buckets allocated so far are used, and the index is sign partitioned, this is not simply the prefix rounded
+    // down to a fixed position width
+    private static long firstPrefixOfPosition(long prefix, Node<?, ?>[][] index)
+    {
+        int indexMask = indexLength(index) - 1;
+        int i = indexHash((int) prefix) & indexMask;
+        if (index[i >> INDEX_SHIFT] == null)
+            i &= indexMask >> 1;
+        return firstHashOfIndex(i);
+    }
+
+    // the first hash indexed by the position, which predecessor() reaches without walking past any node
+    long firstHashOfPosition(int position)
+    {
+        return unscale((long) firstHashOfIndex(position) << 32);
+    }
+
+    // stop resizing the index, so that it is undersized for any further inserts
+    void freezeIndex()
+    {
+        resizeAt = Integer.MAX_VALUE;
+    }
+
+    // forget the index entries for positions [from, indexLength()), as though they had just been allocated by resize()
+    void unpopulateIndex(int from)
+    {
+        Node<K, V>[][] index = this.index;
+        for (int i = Math.max(1, from), length = allocatedLength(index) ; i < length ; i++)
+        {
+            Node<K, V>[] indexBucket = index[i >> INDEX_SHIFT];
+            if (indexBucket != null)
+            {
+                indexBucket[slot(i)] = null;
+                indexBucket[slot(i) + 1] = null;
+            }
+        }
+    }
+
+    // bounds are always inclusive
+    public Range range(K lb, K ub)
+    {
+        return new Range(lb, ub, lb == null ? minHash : hash(lb), ub == null ? maxHash : hash(ub), Integer.MAX_VALUE);
+    }
+
+    /**
+     * <p>Snapshots isolate insertions: a node is linked into the list with an epoch of zero, and is then stamped by its
+     * inserter with the map's current epoch. A snapshot increments the epoch, and includes only those nodes stamped
+     * with an epoch no later than the one it replaced. Any thread that encounters an unstamped node, for any
+     * operation, stamps it itself before proceeding, so that no insert is observed by anybody before it is stamped;
+     * an insert stamped after a snapshot was taken therefore cannot have been visible before the snapshot was taken.
+     *
+     * <p>Removals and updates to values are NOT isolated: a snapshot reflects the values current when each entry is
+     * visited, and omits any entry that has been removed since the snapshot was taken.
+     */
+    public Snapshot snapshot()
+    {
+        return new Snapshot(epochUpdater.getAndIncrement(this));
+    }
+
+    public final class Snapshot
+    {
+        private final int epoch;
+
+        private Snapshot(int epoch)
+        {
+            this.epoch = epoch;
+        }
+
+        public V get(K key)
+        {
+            Node<K, V> node = find(key);
+            return node == null || node.epoch > epoch ? null : node.value;
+        }
+
+        // bounds are always inclusive
+        public Range range(K lb, K ub)
+        {
+            return new Range(lb, ub, lb == null ? minHash : hash(lb), ub == null ? maxHash : hash(ub), epoch);
+        }
+    }
+
+    // stamp a node with the current epoch, if it has not already been
+    private void stamp(Node<K, V> node)
+    {
+        if (node.epoch == 0)
+            nodeEpochUpdater.compareAndSet(node, 0, epoch);
+    }
+
+    // stamps the node if necessary
+    private boolean isVisible(Node<K, V> node, int maxEpoch)
+    {
+        if (node.value == null)
+            return false;
+        stamp(node);
+        return node.epoch <= maxEpoch;
+    }
+
+    /**
+     * A range of the map that may be split into disjoint sub-ranges on the boundaries of index positions, so that
+     * it may be scanned in parallel; {@link #trySplit()} follows the contract of java.util.Spliterator.trySplit().
+     *
+     * Each range is bounded by hash, and (at its original ends only) by key; bounds are always inclusive
+     */
+    public final class Range implements Iterable<Map.Entry<K, V>>
+    {
+        // null at any end that is unbounded, or that was created by a split
+        private K lb, ub;
+        private long lbHash, ubHash;
+        // the latest epoch we may return nodes from; see snapshot()
+        private final int maxEpoch;
+
+        private Range(K lb, K ub, long lbHash, long ubHash, int maxEpoch)
+        {
+            this.lb = lb;
+            this.ub = ub;
+            this.lbHash = lbHash;
+            this.ubHash = ubHash;
+            this.maxEpoch = maxEpoch;
+        }
+
+        /**
+         * Split off the upper half of this range (by hash), rounded to the boundary of a position in the current
+         * index, so that both halves can find their start in the index directly. Returns null if this range
+         * falls within a single index position.
+         */
+        public Range trySplit()
+        {
+            // we split on the 32-bit prefixes of our (scaled) bounds, which we index on, and which we can compute with
+            // as longs without worrying about overflow. positions are not all the same width, so we round the
+            // midpoint down to the first prefix of the position predecessor() would actually use for it
+            Node<K, V>[][] index = NonBlockingHashOrderedMap.this.index;
+            long lbPrefix = prefix(scale(lbHash)), ubPrefix = prefix(scale(ubHash));
+            long split = firstPrefixOfPosition((lbPrefix + ubPrefix + 1) >> 1, index);
+            if (split <= lbPrefix)
+            {
+                // the midpoint shares our first position, so split at the start of the next position, if we reach
+                // one; a position's first prefix only grows with the prefixes it covers, so we can binary search
+                long min = ((lbPrefix + ubPrefix + 1) >> 1) + 1, max = ubPrefix + 1;
+                while (min < max)
+                {
+                    long mid = (min + max) >> 1;
+                    if (firstPrefixOfPosition(mid, index) > lbPrefix)
+                        max = mid;
+                    else
+                        min = mid + 1;
+                }
+                if (min > ubPrefix)
+                    return null;
+                split = firstPrefixOfPosition(min, index);
+            }
+            split = unscale(split << 32);
+            Range result = new Range(null, ub, split, ubHash, maxEpoch);
+            ub = null;
+            ubHash = split - 1;
+            return result;
+        }
+
+        /**
+         * A cursor over this range, that reads its entries in batches
+         */
+        public Cursor cursor()
+        {
+            return new Cursor(first(), ub, ubHash, maxEpoch);
+        }
+
+        public Iterator<Map.Entry<K, V>> iterator()
+        {
+            final K ub = this.ub;
+            final long ubHash = this.ubHash;
+            final int maxEpoch = this.maxEpoch;
+            final Node<K, V> start = first();
+            return new Iterator<Map.Entry<K, V>>()
+            {
+                Node<K, V> node = start;
+                public boolean hasNext()
+                {
+                    return node != null && node.hash <= ubHash && (ub == null || node.compareTo(ubHash, ub) <= 0);
+                }
+
+                public Map.Entry<K, V> next()
+                {
+                    Node<K, V> r = node;
+                    node = node.next;
+                    while (node != null && !isVisible(node, maxEpoch))
+                        node = node.next;
+                    return r;
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        // the first visible node at or after our lower bound, which may be beyond our upper bound
+        private Node<K, V> first()
+        {
+            Node<K, V> first;
+            if (lb != null)
+            {
+                first = onOrAfter(lb);
+            }
+            else
+            {
+                long lbHash = this.lbHash;
+                first = predecessor(lbHash).next;
+                while (first != null && (first.value == null || first.hash < lbHash))
+                    first = first.next;
+            }
+            while (first != null && !isVisible(first, maxEpoch))
+                first = first.next;
+            return first;
+        }
+    }
+
+    // a stand-in for java.util.function.BiConsumer, which we cannot depend on
+    public static interface Visitor<K, V>
+    {
+        public void visit(K key, V value);
+    }
+
+    /**
+     * Reads a range in batches: each call to drain() copies up to count entries into the caller's arrays, or passes
+     * them to a visitor, in a single loop over the list, rather than paying for a hasNext()/next() pair of interface
+     * calls (and the bounds check between them) per entry. Since we read each value once, a value is never returned
+     * with a key that has since been removed, unlike the entries of an Iterator, whose value may later read as null.
+     *
+     * Once drain() returns fewer than count entries, the range is exhausted, and every later call returns zero.
+     */
+    public final class Cursor
+    {
+        // the next node to visit, or null once we have passed our upper bound
+        private Node<K, V> next;
+        private final K ub;
+        private final long ubHash;
+        private final int maxEpoch;
+
+        private Cursor(Node<K, V> next, K ub, long ubHash, int maxEpoch)
+        {
+            this.next = next;
+            this.ub = ub;
+            this.ubHash = ubHash;
+            this.maxEpoch = maxEpoch;
+        }
+
+        /**
+         * Copy up to count entries into keys[offset..offset+count) and values[offset..offset+count), returning the
+         * number copied
+         */
+        public int drain(K[] keys, V[] values, int offset, int count)
+        {
+            if (offset < 0 || count < 0 || offset + count > keys.length || offset + count > values.length)
+                throw new IndexOutOfBoundsException();
+
+            Node<K, V> node = next;
+            int i = offset, end = offset + count;
+            while (i < end && node != null && !pastEnd(node))
+            {
+                V value = node.value;
+                if (value != null)
+                {
+                    stamp(node);
+                    if (node.epoch <= maxEpoch)
+                    {
+                        keys[i] = node.key;
+                        values[i++] = value;
+                    }
+                }
+                node = node.next;
+            }
+            next = node == null || pastEnd(node) ? null : node;
+            return i - offset;
+        }
+
+        /**
+         * Pass up to count entries to the visitor, returning the number visited
+         */
+        public int drain(Visitor<? super K, ? super V> visitor, int count)
+        {
+            Node<K, V> node = next;
+            int i = 0;
+            while (i < count && node != null && !pastEnd(node))
+            {
+                V value = node.value;
+                if (value != null)
+                {
+                    stamp(node);
+                    if (node.epoch <= maxEpoch)
+                    {
+                        visitor.visit(node.key, value);
+                        i++;
+                    }
+                }
+                node = node.next;
+            }
+            next = node == null || pastEnd(node) ? null : node;
+            return i;
+        }
+
+        // only nodes sharing the upper bound's hash need their key compared
+        private boolean pastEnd(Node<K, V> node)
+        {
+            long hash = node.hash;
+            return hash > ubHash || (hash == ubHash && ub != null && node.compareTo(ubHash, ub) > 0);
+        }
+    }
+
+    // bounds are always inclusive; iterates from ub down to lb
+    public Iterable<Map.Entry<K, V>> descendingRange(final K lb, final K ub)
+    {
+        final long lbHash = lb == null ? minHash : hash(lb);
+        final long ubHash = ub == null ? maxHash : hash(ub);
+        return new Iterable<Map.Entry<K, V>>()
+        {
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                return new DescendingIterator(lb, ub, lbHash, ubHash);
+            }
+        };
+    }
+
+    /**
+     * Since our list is singly linked, we iterate in reverse by stepping backwards through the hash range in chunks:
+     * for each chunk we find its start via the index, collect its nodes walking forwards, and return them in reverse.
+     * We size the chunks to contain a few dozen nodes on average (assuming well distributed hashes), widening them
+     * whenever we find a chunk empty and narrowing them whenever we find one too full, so that the cost of each lookup
+     * is amortised over many nodes, and a reverse scan costs about the same as a forward one.
+     */
+    private final class DescendingIterator implements Iterator<Map.Entry<K, V>>
+    {
+        private static final int TARGET_CHUNK_SIZE = 32;
+
+        final K lb, ub;
+        final long lbHash, ubHash;
+        // the upper hash bound of the next chunk, and the width we expect to contain ~TARGET_CHUNK_SIZE nodes;
+        // since chunkEnd cannot go below Long.MIN_VALUE, we separately note when we have returned the chunk starting at lbHash
+        long chunkEnd;
+        long chunkWidth;
+        boolean exhausted;
+
+        Node<K, V>[] chunk = new Node[TARGET_CHUNK_SIZE * 2];
+        // the number of nodes remaining in chunk to return
+        int remaining;
+
+        DescendingIterator(K lb, K ub, long lbHash, long ubHash)
+        {
+            this.lb = lb;
+            this.ub = ub;
+            this.lbHash = lbHash;
+            this.ubHash = ubHash;
+            this.chunkEnd = ubHash;
+            this.exhausted = ubHash < lbHash;
+            // our slice of the hash space is twice (Long.MAX_VALUE >>> sliceShift) wide
+            long perNode = (Long.MAX_VALUE >>> sliceShift) / Math.max(1, size());
+            this.chunkWidth = perNode > Long.MAX_VALUE / (2 * TARGET_CHUNK_SIZE) ? Long.MAX_VALUE : perNode * 2 * TARGET_CHUNK_SIZE;
+        }
+
+        public boolean hasNext()
+        {
+            while (remaining == 0 && !exhausted)
+                nextChunk();
+            return remaining > 0;
+        }
+
+        public Map.Entry<K, V> next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Node<K, V> r = chunk[--remaining];
+            chunk[remaining] = null;
+            return r;
+        }
+
+        private void nextChunk()
+        {
+            // chunkEnd - chunkWidth + 1, bounded below by lbHash, and computed without overflow
+            long chunkStart = chunkEnd < Long.MIN_VALUE + (chunkWidth - 1) ? lbHash : Math.max(lbHash, chunkEnd - (chunkWidth - 1));
+            int count = 0;
+            Node<K, V> node = predecessor(chunkStart).next;
+            for ( ; node != null && node.hash <= chunkEnd ; node = node.next)
+            {
+                if (node.hash < chunkStart || !isVisible(node, Integer.MAX_VALUE))
+                    continue;
+                if (lb != null && node.hash == lbHash && node.compareTo(lbHash, lb) < 0)
+                    continue;
+                if (ub != null && node.hash == ubHash && node.compareTo(ubHash, ub) > 0)
+                    break;
+                if (count == chunk.length)
+                    chunk = Arrays.copyOf(chunk, count * 2);
+                chunk[count++] = node;
+            }
+            remaining = count;
+            if (chunkStart == lbHash)
+                exhausted = true;
+            else
+                chunkEnd = chunkStart - 1;
+            if (count == 0)
+                chunkWidth = chunkWidth > Long.MAX_VALUE / 2 ? Long.MAX_VALUE : chunkWidth * 2;
+            else if (count > TARGET_CHUNK_SIZE * 4 && chunkWidth > 1)
+                chunkWidth /= 2;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // safe to call concurrently with any other operation; see truncate()
+    public void clear()
+    {
+        truncate(null, null);
+    }
+
+    /**
+     * Removes every entry between lb and ub (inclusive, or unbounded where null), concurrently with any other
+     * operation. Each node is removed as by remove(), and is followed by a marker so that nothing may be inserted
+     * after it; the run of removed nodes can then be unlinked from the list by CAS of the node preceding it, many
+     * at a time. Finally we clear any index position covering the range that refers to a removed node, so that lookups
+     * fall back to a coarser position and repopulate it lazily, as they would after a resize.
+     *
+     * The truncation is not atomic: an entry inserted concurrently may survive it, and concurrent readers may
+     * see only some of the range removed. The index is never shrunk.
+     */
+    public void truncate(K lb, K ub)
+    {
+        long lbHash = lb == null ? minHash : hash(lb);
+        long ubHash = ub == null ? maxHash : hash(ub);
+        Node<K, V> pred = predecessor(lbHash);
+
+        // first remove and mark every node in the range, so that nothing more can be inserted amongst them
+        int removed = 0;
+        long firstRemoved = 0, lastRemoved = 0;
+        Node<K, V> node = pred.next;
+        while (node != null && !after(node, ubHash, ub))
+        {
+            V value = node.value;
+            if (node.isMarker() || (value != null && before(node, lbHash, lb)))
+            {
+                node = node.next;
+                continue;
+            }
+            if (value != null)
+            {
+                stamp(node);
+                // if we fail, somebody updated the node, so try again
+                if (!valueUpdater.compareAndSet(node, value, null))
+                    continue;
+                if (counts != null)
+                    counts.decrementAndGet(countBucket(node.hash));
+                if (removed++ == 0)
+                    firstRemoved = node.hash;
+                lastRemoved = node.hash;
+            }
+            node = mark(node).next;
+        }
+        size.add(-removed);
+
+        // then unlink them, a run of removed nodes at a time. since removed nodes are marked, a run can only grow,
+        // so if our CAS fails because of an insert after prev we can reuse the end we found; but other threads may
+        // unlink the start of the run one node at a time, so we bound the length of each run to bound the work we lose
+        Node<K, V> prev = pred, runStart = null, runEnd = null;
+        while (true)
+        {
+            Node<K, V> next = prev.next;
+            if (next == null || after(next, ubHash, ub))
+                break;
+            if (next.value != null)
+            {
+                // either precedes lb, or was inserted since we removed its neighbours
+                prev = next;
+                continue;
+            }
+            if (next.isMarker())
+            {
+                // prev has itself been removed, so resume from a live node preceding it; not from the start of
+                // the range, as prev may be far into it
+                prev = predecessor(prev.hash);
+                continue;
+            }
+            Node<K, V> end = next == runStart ? runEnd : next;
+            for (int run = 0 ; run < MAX_SPLICE && end != null && end.value == null && !after(end, ubHash, ub) ; run++)
+                end = end.isMarker() ? end.next : mark(end).next;
+            runStart = next;
+            runEnd = end;
+            nextUpdater.compareAndSet(prev, next, end);
+        }
+
+        // finally clear each index position that may refer to a node we removed, i.e. those from the position containing
+        // the first to the position following the last, if it does refer to a removed node. we do not point them at the
+        // node preceding the range, as each would then have to walk from there to be repaired
+        if (removed == 0)
+            return;
+        Node<K, V>[][] index = this.index;
+        int indexLength = indexLength(index);
+        // as in Builder.build(), each position covers twice the hashes we might expect
+        long width = (1L << 33) / indexLength;
+        long firstPrefix = prefix(scale(firstRemoved)), lastPrefix = Math.min(Integer.MAX_VALUE, prefix(scale(lastRemoved)) + 1L);
+        long bucketStart = Integer.MIN_VALUE + ((firstPrefix - Integer.MIN_VALUE) / width) * width;
+        for ( ; bucketStart <= lastPrefix ; bucketStart += width)
+        {
+            int i = indexHash((int) bucketStart) & (indexLength - 1);
+            Node<K, V>[] indexBucket = index[i >> INDEX_SHIFT];
+            if (indexBucket == null)
+                continue;
+            int slot = slot(i);
+            Node<K, V> entry = indexBucket[slot];
+            if (entry != null && !isLive(entry))
+                indexBucket[slot] = null;
+            Node<K, V> first = indexBucket[slot + 1];
+            if (first != null && first.value == null)
+                indexBucket[slot + 1] = null;
+        }
+    }
+
+    // ensure the removed node is followed by a marker, returning the marker
+    private Node<K, V> mark(Node<K, V> node)
+    {
+        while (true)
+        {
+            Node<K, V> next = node.next;
+            if (next != null && next.isMarker())
+                return next;
+            Node<K, V> marker = new Node<>(node.hash, null, null);
+            nextUpdater.lazySet(marker, next);
+            if (nextUpdater.compareAndSet(node, next, marker))
+                return marker;
+        }
+    }
+
+    // whether node sorts before the inclusive lower bound lb (with hash lbHash), which is unbounded if null
+    private boolean before(Node<K, V> node, long lbHash, K lb)
+    {
+        return lb == null ? node.hash < lbHash : node.compareTo(lbHash, lb) < 0;
+    }
+
+    // whether node sorts after the inclusive upper bound ub (with hash ubHash), which is unbounded if null
+    private boolean after(Node<K, V> node, long ubHash, K ub)
+    {
+        return ub == null ? node.hash > ubHash : node.compareTo(ubHash, ub) > 0;
+    }
+
+    /**
+     * Constructs a map from entries supplied in the map's own order (i.e. by hash, then by key), linking them
+     * directly into the list, and building the index eagerly at the size it would have grown to by inserting them.
+     * The result is an ordinary map, ready for concurrent use. A Builder is not itself thread-safe, and may only be
+     * built once.
+     */
+    public static final class Builder<K extends Comparable<? super K>, V>
+    {
+        private NonBlockingHashOrderedMap<K, V> map;
+        private Node<K, V> tail;
+        private int size;
+
+        public Builder()
+        {
+            this(false);
+        }
+
+        // if counts is true, the map built counts its entries as by NonBlockingHashOrderedMap(boolean, boolean)
+        public Builder(boolean counts)
+        {
+            map = new NonBlockingHashOrderedMap<>(false, counts);
+            tail = map.head;
+        }
+
+        public Builder<K, V> add(K key, V value)
+        {
+            if (map == null)
+                throw new IllegalStateException();
+            if (value == null)
+                throw new IllegalArgumentException();
+            long hash = hash(key);
+            if (tail.compareTo(hash, key) >= 0)
+                throw new IllegalArgumentException("keys must be supplied in map order without duplicates");
+            Node<K, V> node = new Node<>(hash, key, value);
+            node.epoch = map.epoch;
+            if (map.counts != null)
+                map.counts.incrementAndGet(map.countBucket(hash));
+            tail.next = node;
+            tail = node;
+            size++;
+            return this;
+        }
+
+        public NonBlockingHashOrderedMap<K, V> build()
+        {
+            NonBlockingHashOrderedMap<K, V> map = this.map;
+            if (map == null)
+                throw new IllegalStateException();
+            this.map = null;
+
+            // size the index as resize() would have, so that it is at most 66% full
+            long capacity = Math.max(1 << 10, (size * 3L + 1) / 2);
+            Node<K, V>[][] index;
+            if (capacity <= 1 << INDEX_SHIFT)
+            {
+                index = new Node[1][Integer.highestOneBit((int) capacity - 1) << 2];
+            }
+            else
+            {
+                int buckets = (int) ((capacity + INDEX_BUCKET_MASK) >> INDEX_SHIFT);
+                index = new Node[Integer.highestOneBit(buckets - 1) << 1][];
+                for (int i = 0 ; i < buckets ; i++)
+                    index[i] = new Node[2 << INDEX_SHIFT];
+                map.allocatedBuckets = buckets;
+            }
+
+            // then populate every allocated position in the index with the last node preceding its range of hashes,
+            // visiting them in hash order so that we need walk the list only once; since the lowest bit of a position
+            // only duplicates the sign, each position covers twice the hashes we might expect
+            int indexLength = indexLength(index);
+            long width = (1L << 33) / indexLength;
+            Node<K, V> node = map.head;
+            index[0][0] = node;
+            for (long bucketStart = Integer.MIN_VALUE ; bucketStart <= Integer.MAX_VALUE ; bucketStart += width)
+            {
+                while (node.next != null && node.next.hash < bucketStart << 32)
+                    node = node.next;
+                int i = indexHash((int) bucketStart) & (indexLength - 1);
+                Node<K, V>[] indexBucket = index[i >> INDEX_SHIFT];
+                if (indexBucket != null)
+                {
+                    indexBucket[slot(i)] = node;
+                    indexBucket[slot(i) + 1] = node.next;
+                }
+            }
+
+            map.size.add(size);
+            map.resizeAt = resizeThreshold(map.allocatedLength(index));
+            map.resizeCheckMask = resizeCheckMask(map.resizeAt, map.size.stripeCount());
+            map.index = index;
+            return map;
+        }
+    }
+
+    public boolean valid()
+    {
+        Node<K, V> prev = head;
+        for (Node<K, V> n = prev.next ; n != null ; n = n.next)
+        {
+            if (n.value == null)
+                continue;
+            if (prev.compareTo(n.hash, n.key) >= 0 || onOrAfter(n.key) != n || definitelyAbsent(n.hash))
+                return false;
+            prev = n;
+        }
+        return true;
+    }
+
+    private static final AtomicIntegerFieldUpdater<NonBlockingHashOrderedMap> rebuildingFilterUpdater = AtomicIntegerFieldUpdater.newUpdater(NonBlockingHashOrderedMap.class, "rebuildingFilter");
+    private static final AtomicIntegerFieldUpdater<NonBlockingHashOrderedMap> resizingUpdater = AtomicIntegerFieldUpdater.newUpdater(NonBlockingHashOrderedMap.class, "resizing");
+    private static final AtomicReferenceFieldUpdater<Node, Node> nextUpdater = AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+    private static final AtomicReferenceFieldUpdater<Node, Object> valueUpdater = AtomicReferenceFieldUpdater.newUpdater(Node.class, Object.class, "value");
+    private static final AtomicIntegerFieldUpdater<NonBlockingHashOrderedMap> epochUpdater = AtomicIntegerFieldUpdater.newUpdater(NonBlockingHashOrderedMap.class, "epoch");
+    private static final AtomicIntegerFieldUpdater<Node> nodeEpochUpdater = AtomicIntegerFieldUpdater.newUpdater(Node.class, "epoch");
 }
\ No newline at end of file
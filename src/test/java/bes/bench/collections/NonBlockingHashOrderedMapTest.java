@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NonBlockingHashOrderedMapTest
+{
+
+    // the filter is rebuilt a step at a time as the map grows, so inserting many keys from several threads at once
+    // rebuilds it repeatedly while inserts (and removals, which the rebuild's walk must step past) are in flight;
+    // every key must be found as soon as its insert returns, and until it is removed
+    @Test
+    public void testBloomFilterRebuildWithConcurrentInserts() throws InterruptedException
+    {
+        final int threads = 4, perThread = 1 << 17;
+        for (int round = 0 ; round < 4 ; round++)
+        {
+            final NonBlockingHashOrderedMap<Long, Long> map = new NonBlockingHashOrderedMap<>(true);
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicReference<String> failure = new AtomicReference<>();
+            final Long[][] inserted = new Long[threads][perThread];
+            List<Thread> running = new ArrayList<>();
+            for (int t = 0 ; t < threads ; t++)
+            {
+                final Long[] keys = inserted[t];
+                Thread thread = new Thread(new Runnable()
+                {
+                    public void run()
+                    {
+                        ThreadLocalRandom random = ThreadLocalRandom.current();
+                        try
+                        {
+                            start.await();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            throw new AssertionError(e);
+                        }
+                        for (int i = 0 ; i < perThread && failure.get() == null ; i++)
+                        {
+                            Long key = random.nextLong();
+                            if (map.putIfAbsent(key, key) != null)
+                                continue;
+                            keys[i] = key;
+                            if (!key.equals(map.get(key)))
+                                failure.compareAndSet(null, "missing " + key + " after insert returned, at size " + map.size());
+                            if ((i & 3) == 0 && key.equals(map.remove(key)))
+                                keys[i] = null;
+                        }
+                    }
+                });
+                thread.start();
+                running.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : running)
+                thread.join();
+            Assert.assertNull(failure.get());
+
+            for (Long[] keys : inserted)
+                for (Long key : keys)
+                    if (key != null)
+                        Assert.assertEquals(key, map.get(key));
+            Assert.assertTrue(map.valid());
+        }
+    }
+
+    // count() must be exact with or without the bucket counts, and rank() close to exact either side of the midpoint
+    @Test
+    public void testCounts()
+    {
+        Random random = new Random(0);
+        for (boolean counts : new boolean[] { false, true })
+        {
+            NonBlockingHashOrderedMap<Long, Long> map = new NonBlockingHashOrderedMap<>(false, counts);
+            for (int i = 0 ; i < 100000 ; i++)
+            {
+                long key = random.nextLong();
+                map.putIfAbsent(key, key);
+            }
+            List<Long> keys = new ArrayList<>();
+            for (Map.Entry<Long, Long> e : map.range(null, null))
+                keys.add(e.getKey());
+
+            Assert.assertEquals(keys.size(), map.count(null, null));
+            for (int i = 0 ; i < 100 ; i++)
+            {
+                int lb = random.nextInt(keys.size()), ub = lb + random.nextInt(keys.size() - lb);
+                Assert.assertEquals(ub - lb + 1, map.count(keys.get(lb), keys.get(ub)));
+                if (counts)
+                    Assert.assertEquals(lb, map.rank(keys.get(lb)), 50);
+            }
+
+            if (!counts)
+            {
+                try
+                {
+                    map.rank(keys.get(0));
+                    Assert.fail("rank() without counts should fail");
+                }
+                catch (IllegalStateException e)
+                {
+                }
+            }
+        }
+    }
+
+    // partitions size their counter, count buckets and index from their slice, so must still count exactly
+    @Test
+    public void testPartitionedCounts()
+    {
+        Random random = new Random(0);
+        for (int partitions : new int[] { 1, 64, 1 << 10 })
+        {
+            PartitionedHashOrderedMap<Long, Long> map = new PartitionedHashOrderedMap<>(partitions, true);
+            for (int i = 0 ; i < 100000 ; i++)
+            {
+                long key = random.nextLong();
+                map.putIfAbsent(key, key);
+            }
+            List<Long> keys = new ArrayList<>();
+            for (Map.Entry<Long, Long> e : map.range(null, null))
+                keys.add(e.getKey());
+
+            Assert.assertEquals(keys.size(), map.count(null, null));
+            for (int i = 0 ; i < 100 ; i++)
+            {
+                int lb = random.nextInt(keys.size()), ub = lb + random.nextInt(keys.size() - lb);
+                Assert.assertEquals(ub - lb + 1, map.count(keys.get(lb), keys.get(ub)));
+            }
+        }
+    }
+
+    // splitting a range repeatedly must end with one range per position in use, partitioning the map's entries in order
+    @Test
+    public void testSplitOnPositions()
+    {
+        Random random = new Random(0);
+        for (int size : new int[] { 0, 100, 10000, 300000 })
+        {
+            NonBlockingHashOrderedMap<Long, Long> map = new NonBlockingHashOrderedMap<>();
+            for (int i = 0 ; i < size ; i++)
+            {
+                long key = random.nextLong();
+                map.putIfAbsent(key, key);
+            }
+
+            List<NonBlockingHashOrderedMap<Long, Long>.Range> leaves = new ArrayList<>();
+            split(map.range(null, null), leaves);
+            Set<Long> positions = new HashSet<>();
+            for (int i = 0 ; i < map.indexLength() ; i++)
+                positions.add(map.firstHashOfPosition(i));
+            Assert.assertEquals(positions.size(), leaves.size());
+
+            List<Long> expect = new ArrayList<>(), actual = new ArrayList<>();
+            for (Map.Entry<Long, Long> e : map.range(null, null))
+                expect.add(e.getKey());
+            for (NonBlockingHashOrderedMap<Long, Long>.Range leaf : leaves)
+                for (Map.Entry<Long, Long> e : leaf)
+                    actual.add(e.getKey());
+            Assert.assertEquals(expect, actual);
+        }
+    }
+
+    // collect the ranges that cannot be split further, in order
+    private static void split(NonBlockingHashOrderedMap<Long, Long>.Range range, List<NonBlockingHashOrderedMap<Long, Long>.Range> leaves)
+    {
+        NonBlockingHashOrderedMap<Long, Long>.Range upper = range.trySplit();
+        if (upper == null)
+        {
+            leaves.add(range);
+            return;
+        }
+        split(range, leaves);
+        split(upper, leaves);
+    }
+
+}
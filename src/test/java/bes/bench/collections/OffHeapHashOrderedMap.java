@@ -0,0 +1,819 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import static bes.bench.collections.AtomicReferenceArrayUpdater.unsafe;
+import static bes.bench.collections.NonBlockingHashOrderedMap.INDEX_BUCKET_MASK;
+import static bes.bench.collections.NonBlockingHashOrderedMap.INDEX_SHIFT;
+import static bes.bench.collections.NonBlockingHashOrderedMap.firstHashOfIndex;
+import static bes.bench.collections.NonBlockingHashOrderedMap.indexHash;
+import static bes.bench.collections.NonBlockingHashOrderedMap.resizeCheckMask;
+import static bes.bench.collections.NonBlockingHashOrderedMap.resizeThreshold;
+
+/**
+ * <p>A variant of {@link NonBlockingHashOrderedMap} that stores its linked-list off-heap, so that the GC never has
+ * to trace it. Only the index (an array of addresses, with no references) and the bookkeeping for our memory
+ * remain on heap.
+ *
+ * <p>Nodes are bump-allocated from large slabs of native memory, and are laid out as
+ * [next:8][value:8][hash:4][key size:4][key]; next is the absolute address of the following node (or zero), and
+ * value the address of the node's current value, laid out as [value size:4][value]. Both are updated by CAS directly
+ * on native memory. A node's first value is allocated along with it, immediately after its key; since a value may
+ * change size, an update serializes its new value to a fresh allocation, and swaps the node's value address for it.
+ *
+ * <p>Keys and values are serialized on insert, and deserialized whenever they are returned or (for keys) whenever
+ * two keys with the same hash must be compared. Memory is only released by {@link #clear()}, which must not be
+ * called while the map is in use (with assertions enabled, this is checked); so superseded values are not released
+ * either, and since an address is therefore never reused, a CAS of the value address cannot suffer ABA.
+ */
+public class OffHeapHashOrderedMap<K extends Comparable<? super K>, V> implements InsertOnlyOrderedMap<K, V>
+{
+    private static final int NEXT = 0, VALUE = 8, HASH = 16, KEY_SIZE = 20, HEADER_SIZE = 24;
+    private static final int VALUE_SIZE = 0, VALUE_HEADER_SIZE = 4;
+    private static final int SLAB_SIZE = 1 << 20;
+
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+
+    // see NonBlockingHashOrderedMap.size, resizeAt, resizeCheckMask and resizing
+    private final StripedCounter size = new StripedCounter();
+    private volatile int resizeAt;
+    private volatile int resizeCheckMask;
+    private volatile int resizing;
+
+    // the slab we are currently allocating from, and every region of memory we have allocated, so we can free them
+    private volatile Slab slab;
+    // installed in place of an exhausted slab by the one thread allocating its replacement, so no other thread
+    // allocates a region it cannot install
+    private static final Slab REPLACING = new Slab(0);
+    private final Queue<Long> regions = new ConcurrentLinkedQueue<>();
+    private final AtomicLong offHeapSize = new AtomicLong();
+
+    // with assertions enabled, the number of operations in progress, so that clear() can assert it has exclusive use
+    // of the memory it frees; clear() sets it to CLEARING while it runs, so an operation that starts meanwhile fails too
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private static final int CLEARING = Integer.MIN_VALUE;
+    // the number of times we have been cleared, so that an iterator can assert its memory has not been freed
+    private volatile int clears;
+
+    // the predecessor to the whole list; its key is never consulted
+    private long head;
+
+    // see NonBlockingHashOrderedMap.index; we rely on long writes to the index being atomic, as they are on 64-bit JVMs
+    private volatile long[][] index;
+
+    private static final class Slab
+    {
+        final long base;
+        volatile int position;
+
+        Slab(long base)
+        {
+            this.base = base;
+        }
+
+        // returns the address of size bytes, or zero if there is not enough room left
+        long allocate(int size)
+        {
+            while (true)
+            {
+                int cur = position;
+                if (cur + size > SLAB_SIZE)
+                    return 0;
+                if (positionUpdater.compareAndSet(this, cur, cur + size))
+                    return base + cur;
+            }
+        }
+
+        private static final AtomicIntegerFieldUpdater<Slab> positionUpdater = AtomicIntegerFieldUpdater.newUpdater(Slab.class, "position");
+    }
+
+    public OffHeapHashOrderedMap(Serializer<K> keySerializer, Serializer<V> valueSerializer)
+    {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        init();
+    }
+
+    private void init()
+    {
+        slab = new Slab(allocateRegion(SLAB_SIZE));
+        head = allocate(HEADER_SIZE);
+        unsafe.putLong(head + NEXT, 0L);
+        unsafe.putInt(head + HASH, Integer.MIN_VALUE);
+        long[][] index = new long[1][1 << 10];
+        index[0][0] = head;
+        this.index = index;
+        resizeAt = resizeThreshold(1 << 10);
+        resizeCheckMask = resizeCheckMask(resizeAt);
+    }
+
+    private long allocateRegion(int size)
+    {
+        long address = unsafe.allocateMemory(size);
+        regions.add(address);
+        offHeapSize.addAndGet(size);
+        return address;
+    }
+
+    private long allocate(int size)
+    {
+        // keep every node 8-byte aligned, so that next can be updated atomically
+        size = (size + 7) & ~7;
+        if (size > SLAB_SIZE / 8)
+            return allocateRegion(size);
+        while (true)
+        {
+            Slab cur = slab;
+            if (cur == REPLACING)
+            {
+                Thread.yield();
+                continue;
+            }
+            long address = cur.allocate(size);
+            if (address != 0)
+                return address;
+            // only the thread that installs REPLACING allocates a new slab, so no region is allocated and then dropped;
+            // if the allocation fails we restore the exhausted slab, so that another thread may try
+            if (slabUpdater.compareAndSet(this, cur, REPLACING))
+            {
+                Slab next = cur;
+                try
+                {
+                    next = new Slab(allocateRegion(SLAB_SIZE));
+                }
+                finally
+                {
+                    slab = next;
+                }
+            }
+        }
+    }
+
+    private long allocate(int hash, K key, V value)
+    {
+        int keySize = keySerializer.serializedSize(key);
+        int valueSize = valueSerializer.serializedSize(value);
+        long node = allocate(HEADER_SIZE + keySize + VALUE_HEADER_SIZE + valueSize);
+        unsafe.putInt(node + HASH, hash);
+        unsafe.putInt(node + KEY_SIZE, keySize);
+        keySerializer.serialize(key, null, node + HEADER_SIZE);
+        long valueAddress = node + HEADER_SIZE + keySize;
+        serializeValue(value, valueAddress, valueSize);
+        unsafe.putLong(node + VALUE, valueAddress);
+        return node;
+    }
+
+    // a fresh copy of value, to replace the value of an existing node
+    private long allocateValue(V value)
+    {
+        int valueSize = valueSerializer.serializedSize(value);
+        long valueAddress = allocate(VALUE_HEADER_SIZE + valueSize);
+        serializeValue(value, valueAddress, valueSize);
+        return valueAddress;
+    }
+
+    private void serializeValue(V value, long valueAddress, int valueSize)
+    {
+        unsafe.putInt(valueAddress + VALUE_SIZE, valueSize);
+        valueSerializer.serialize(value, null, valueAddress + VALUE_HEADER_SIZE);
+    }
+
+    private static long next(long node)
+    {
+        return unsafe.getLongVolatile(null, node + NEXT);
+    }
+
+    private static int hash(long node)
+    {
+        return unsafe.getInt(node + HASH);
+    }
+
+    private K key(long node)
+    {
+        return keySerializer.deserialize(null, node + HEADER_SIZE, unsafe.getInt(node + KEY_SIZE));
+    }
+
+    private V value(long node)
+    {
+        return deserializeValue(valueAddress(node));
+    }
+
+    private static long valueAddress(long node)
+    {
+        return unsafe.getLongVolatile(null, node + VALUE);
+    }
+
+    private V deserializeValue(long valueAddress)
+    {
+        return valueSerializer.deserialize(null, valueAddress + VALUE_HEADER_SIZE, unsafe.getInt(valueAddress + VALUE_SIZE));
+    }
+
+    // the CAS publishes the new value's contents, as the CAS of next does a new node's
+    private static boolean casValue(long node, long expect, long update)
+    {
+        return unsafe.compareAndSwapLong(null, node + VALUE, expect, update);
+    }
+
+    // never invoked on the head
+    private int compareTo(long node, int hash, K key)
+    {
+        int r = Integer.compare(hash(node), hash);
+        if (r != 0)
+            return r;
+        return key(node).compareTo(key);
+    }
+
+    public V putIfAbsent(K key, V value)
+    {
+        assert enter();
+        try
+        {
+            if (value == null)
+                throw new IllegalArgumentException();
+            int hash = key.hashCode();
+            long pred = predecessor(hash);
+            // we only allocate once we've found somewhere to insert; if we subsequently find the key already present
+            // (due to a concurrent insert) the memory is wasted until the map is cleared
+            long newNode = 0;
+            while (true)
+            {
+                long next = next(pred);
+                int c = next == 0 ? 1 : compareTo(next, hash, key);
+                if (c >= 0)
+                {
+                    if (c == 0)
+                        return value(next);
+                    if (newNode == 0)
+                        newNode = allocate(hash, key, value);
+                    // the CAS below publishes this, and the node's contents, safely
+                    unsafe.putLong(newNode + NEXT, next);
+                    if (unsafe.compareAndSwapLong(null, pred + NEXT, next, newNode))
+                    {
+                        maybeResize(size.add(1));
+                        return null;
+                    }
+                }
+                else
+                {
+                    pred = next;
+                }
+            }
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    // not specialised: each key is inserted independently, from its own lookup in the index
+    public int putAllSorted(K[] keys, V[] values, int offset, int count)
+    {
+        int inserted = 0;
+        for (int i = offset, end = offset + count ; i < end ; i++)
+            if (putIfAbsent(keys[i], values[i]) == null)
+                inserted++;
+        return inserted;
+    }
+
+    // updates are made by CAS of the node's value address; since we never remove a node, once found it stays live
+    public boolean replace(K key, V oldValue, V newValue)
+    {
+        assert enter();
+        try
+        {
+            if (newValue == null)
+                throw new IllegalArgumentException();
+            long node = find(key);
+            if (node == 0)
+                return false;
+            long update = 0;
+            while (true)
+            {
+                long cur = valueAddress(node);
+                if (!deserializeValue(cur).equals(oldValue))
+                    return false;
+                if (update == 0)
+                    update = allocateValue(newValue);
+                if (casValue(node, cur, update))
+                    return true;
+            }
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remapping)
+    {
+        assert enter();
+        try
+        {
+            long node = find(key);
+            if (node == 0)
+                return null;
+            while (true)
+            {
+                long cur = valueAddress(node);
+                V newValue = remapping.apply(key, deserializeValue(cur));
+                if (newValue == null)
+                    throw new IllegalArgumentException();
+                if (casValue(node, cur, allocateValue(newValue)))
+                    return newValue;
+            }
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remapping)
+    {
+        assert enter();
+        try
+        {
+            if (value == null)
+                throw new IllegalArgumentException();
+            long node;
+            while (0 == (node = find(key)))
+            {
+                if (putIfAbsent(key, value) == null)
+                    return value;
+            }
+            while (true)
+            {
+                long cur = valueAddress(node);
+                V newValue = remapping.apply(deserializeValue(cur), value);
+                if (newValue == null)
+                    throw new IllegalArgumentException();
+                if (casValue(node, cur, allocateValue(newValue)))
+                    return newValue;
+            }
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    public V get(K key)
+    {
+        assert enter();
+        try
+        {
+            int hash = key.hashCode();
+            long node = next(predecessor(hash));
+            while (node != 0)
+            {
+                int c = compareTo(node, hash, key);
+                if (c >= 0)
+                    return c == 0 ? value(node) : null;
+                node = next(node);
+            }
+            return null;
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    // see NonBlockingHashOrderedMap.predecessor
+    private long predecessor(int hash)
+    {
+        long[][] index = this.index;
+        int indexHash = indexHash(hash);
+        int indexMask = indexLength(index) - 1;
+        int i = indexHash & indexMask;
+        long node;
+        {
+            long[] indexBucket = index[i >> INDEX_SHIFT];
+            if (indexBucket == null)
+            {
+                indexMask >>= 1;
+                i &= indexMask;
+                indexBucket = index[i >> INDEX_SHIFT];
+            }
+            node = indexBucket[i & INDEX_BUCKET_MASK];
+        }
+        if (node == 0)
+        {
+            int j = i;
+            while (node == 0)
+            {
+                j ^= Integer.highestOneBit(j);
+                node = index[j >> INDEX_SHIFT][j & INDEX_BUCKET_MASK];
+            }
+            while (j != i)
+            {
+                j |= Integer.lowestOneBit(i ^ j);
+                node = scrollToBucket(j, node, 0, index);
+            }
+        }
+        else
+        {
+            node = scrollToBucket(i, node, node, index);
+        }
+
+        for (long next = next(node) ; next != 0 && hash(next) < hash ; next = next(next))
+            node = next;
+        return node;
+    }
+
+    private long scrollToBucket(int i, long node, long exp, long[][] index)
+    {
+        long result = node;
+        int bucketStart = firstHashOfIndex(i);
+        for (long next = next(node) ; next != 0 && hash(next) < bucketStart ; next = next(next))
+            result = next;
+        if (result != exp)
+        {
+            long[] indexBucket = index[i >> INDEX_SHIFT];
+            if (indexBucket != null)
+                indexBucket[i & INDEX_BUCKET_MASK] = result;
+        }
+        return result;
+    }
+
+    private static int indexLength(long[][] index)
+    {
+        return index.length == 1 ? index[0].length : index.length << INDEX_SHIFT;
+    }
+
+    // the node for key, or zero if there is none
+    private long find(K key)
+    {
+        long node = onOrAfter(key);
+        return node != 0 && compareTo(node, key.hashCode(), key) == 0 ? node : 0;
+    }
+
+    // find the first node that is equal to or greater than key
+    private long onOrAfter(K key)
+    {
+        int hash = key.hashCode();
+        long node = next(predecessor(hash));
+        while (node != 0 && compareTo(node, hash, key) < 0)
+            node = next(node);
+        return node;
+    }
+
+    // since our entries live off-heap, each entry returned is a fresh copy
+    public Map.Entry<K, V> ceilingEntry(K key)
+    {
+        assert enter();
+        try
+        {
+            return entry(onOrAfter(key));
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    public Map.Entry<K, V> higherEntry(K key)
+    {
+        assert enter();
+        try
+        {
+            int hash = key.hashCode();
+            long node = onOrAfter(key);
+            if (node != 0 && compareTo(node, hash, key) == 0)
+                node = next(node);
+            return entry(node);
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    public Map.Entry<K, V> floorEntry(K key)
+    {
+        assert enter();
+        try
+        {
+            return entry(last(key.hashCode(), key, true));
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    public Map.Entry<K, V> lowerEntry(K key)
+    {
+        assert enter();
+        try
+        {
+            return entry(last(key.hashCode(), key, false));
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    public Map.Entry<K, V> firstEntry()
+    {
+        assert enter();
+        try
+        {
+            return entry(next(head));
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    public Map.Entry<K, V> lastEntry()
+    {
+        assert enter();
+        try
+        {
+            return entry(last(Integer.MAX_VALUE, null, true));
+        }
+        finally
+        {
+            assert exit();
+        }
+    }
+
+    // the last node that sorts before hash/key (or on it, if inclusive), or the head if there is none;
+    // a null key sorts after every key with the same hash
+    private long last(int hash, K key, boolean inclusive)
+    {
+        long node = predecessor(hash);
+        for (long next = next(node) ; next != 0 ; next = next(next))
+        {
+            int c = key == null ? Integer.compare(hash(next), hash) : compareTo(next, hash, key);
+            if (c > 0 || (c == 0 && !inclusive))
+                break;
+            node = next;
+        }
+        return node;
+    }
+
+    private Map.Entry<K, V> entry(long node)
+    {
+        if (node == 0 || node == head)
+            return null;
+        return new AbstractMap.SimpleImmutableEntry<>(key(node), value(node));
+    }
+
+    public int size()
+    {
+        return size.sum();
+    }
+
+    // the number of bytes of native memory we have allocated
+    public long offHeapSize()
+    {
+        return offHeapSize.get();
+    }
+
+    // see NonBlockingHashOrderedMap.maybeResize
+    private void maybeResize(int stripeSize)
+    {
+        if ((stripeSize & resizeCheckMask) != 0)
+            return;
+        int size = this.size.sum();
+        if (size >= resizeAt && resizingUpdater.compareAndSet(this, 0, 1))
+        {
+            try
+            {
+                resize(size * 2);
+            }
+            finally
+            {
+                resizing = 0;
+            }
+        }
+    }
+
+    // all we do is allocate a suitably large copy of the existing index and let the readers/writers lazily populate it
+    private void resize(int targetSize)
+    {
+        long[][] resize = index;
+        int cur = indexLength(resize);
+        int len = cur;
+        while (len < targetSize)
+            len *= 2;
+        if (cur != len)
+        {
+            resize = Arrays.copyOf(resize, Math.max(1, len >> INDEX_SHIFT));
+            if (cur < 1 << INDEX_SHIFT)
+                resize[0] = Arrays.copyOf(resize[0], Math.min(len, 1 << INDEX_SHIFT));
+            index = resize;
+            for (int i = Math.max(1, cur >> INDEX_SHIFT) ; i != resize.length ; i++)
+            {
+                resize[i] = new long[1 << INDEX_SHIFT];
+                index = resize;
+            }
+        }
+        resizeAt = resizeThreshold(indexLength(index));
+        resizeCheckMask = resizeCheckMask(resizeAt);
+    }
+
+    // bounds are always inclusive; since our entries live off-heap, each entry returned is a fresh copy
+    public Iterable<Map.Entry<K, V>> range(final K lb, final K ub)
+    {
+        final int ubHash = ub == null ? Integer.MAX_VALUE : ub.hashCode();
+        return new Iterable<Map.Entry<K, V>>()
+        {
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                return new Iterator<Map.Entry<K, V>>()
+                {
+                    final int clears = OffHeapHashOrderedMap.this.clears;
+                    long node = lb == null ? OffHeapHashOrderedMap.next(head) : onOrAfter(lb);
+                    public boolean hasNext()
+                    {
+                        assert clears == OffHeapHashOrderedMap.this.clears : "iterator used after clear()";
+                        return node != 0 && (ub == null || compareTo(node, ubHash, ub) <= 0);
+                    }
+
+                    public Map.Entry<K, V> next()
+                    {
+                        assert clears == OffHeapHashOrderedMap.this.clears : "iterator used after clear()";
+                        long r = node;
+                        node = OffHeapHashOrderedMap.next(node);
+                        return new AbstractMap.SimpleImmutableEntry<>(key(r), value(r));
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    // bounds are always inclusive; iterates from ub down to lb, and as with range() each entry returned is a fresh copy
+    public Iterable<Map.Entry<K, V>> descendingRange(final K lb, final K ub)
+    {
+        final int lbHash = lb == null ? Integer.MIN_VALUE : lb.hashCode();
+        final int ubHash = ub == null ? Integer.MAX_VALUE : ub.hashCode();
+        return new Iterable<Map.Entry<K, V>>()
+        {
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                return new DescendingIterator(lb, ub, lbHash, ubHash);
+            }
+        };
+    }
+
+    // see NonBlockingHashOrderedMap.DescendingIterator; since our hashes are only 32 bits, we can chunk them as longs
+    // without any concern for overflow
+    private final class DescendingIterator implements Iterator<Map.Entry<K, V>>
+    {
+        private static final int TARGET_CHUNK_SIZE = 32;
+
+        final K lb, ub;
+        final int lbHash, ubHash;
+        final int clears = OffHeapHashOrderedMap.this.clears;
+        // the upper hash bound of the next chunk, and the width we expect to contain ~TARGET_CHUNK_SIZE nodes
+        long chunkEnd;
+        long chunkWidth;
+        boolean exhausted;
+
+        long[] chunk = new long[TARGET_CHUNK_SIZE * 2];
+        // the number of nodes remaining in chunk to return
+        int remaining;
+
+        DescendingIterator(K lb, K ub, int lbHash, int ubHash)
+        {
+            this.lb = lb;
+            this.ub = ub;
+            this.lbHash = lbHash;
+            this.ubHash = ubHash;
+            this.chunkEnd = ubHash;
+            this.exhausted = ubHash < lbHash;
+            // the hash space is 2^32 wide
+            long perNode = (1L << 32) / Math.max(1, size());
+            this.chunkWidth = Math.max(1, perNode * TARGET_CHUNK_SIZE);
+        }
+
+        public boolean hasNext()
+        {
+            assert clears == OffHeapHashOrderedMap.this.clears : "iterator used after clear()";
+            while (remaining == 0 && !exhausted)
+                nextChunk();
+            return remaining > 0;
+        }
+
+        public Map.Entry<K, V> next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            long r = chunk[--remaining];
+            return new AbstractMap.SimpleImmutableEntry<>(key(r), value(r));
+        }
+
+        private void nextChunk()
+        {
+            long chunkStart = Math.max(lbHash, chunkEnd - (chunkWidth - 1));
+            int count = 0;
+            for (long node = OffHeapHashOrderedMap.next(predecessor((int) chunkStart)) ; node != 0 && hash(node) <= chunkEnd ; node = OffHeapHashOrderedMap.next(node))
+            {
+                int hash = hash(node);
+                if (hash < chunkStart)
+                    continue;
+                if (lb != null && hash == lbHash && compareTo(node, lbHash, lb) < 0)
+                    continue;
+                if (ub != null && hash == ubHash && compareTo(node, ubHash, ub) > 0)
+                    break;
+                if (count == chunk.length)
+                    chunk = Arrays.copyOf(chunk, count * 2);
+                chunk[count++] = node;
+            }
+            remaining = count;
+            if (chunkStart == lbHash)
+                exhausted = true;
+            else
+                chunkEnd = chunkStart - 1;
+            if (count == 0)
+                chunkWidth = Math.min(1L << 32, chunkWidth * 2);
+            else if (count > TARGET_CHUNK_SIZE * 4 && chunkWidth > 1)
+                chunkWidth /= 2;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    // releases all of our native memory, and resets the map to empty; no other thread may be using the map, nor may
+    // any iterator be used afterwards, which with assertions enabled is checked
+    public void clear()
+    {
+        assert inFlight.compareAndSet(0, CLEARING) : "clear() called while " + inFlight.get() + " operations were in progress";
+        clears++;
+        Long region;
+        while (null != (region = regions.poll()))
+            unsafe.freeMemory(region);
+        offHeapSize.set(0);
+        size.reset();
+        init();
+        assert inFlight.compareAndSet(CLEARING, 0) : "an operation was started during clear()";
+    }
+
+    private boolean enter()
+    {
+        if (inFlight.incrementAndGet() <= 0)
+            throw new AssertionError("an operation was started during clear()");
+        return true;
+    }
+
+    private boolean exit()
+    {
+        inFlight.decrementAndGet();
+        return true;
+    }
+
+    public boolean valid()
+    {
+        long prev = next(head);
+        if (prev == 0)
+            return true;
+        for (long n = next(prev) ; n != 0 ; prev = n, n = next(n))
+            if (compareTo(prev, hash(n), key(n)) >= 0 || onOrAfter(key(n)) != n)
+                return false;
+        return true;
+    }
+
+    private static final AtomicIntegerFieldUpdater<OffHeapHashOrderedMap> resizingUpdater = AtomicIntegerFieldUpdater.newUpdater(OffHeapHashOrderedMap.class, "resizing");
+    private static final AtomicReferenceFieldUpdater<OffHeapHashOrderedMap, Slab> slabUpdater = AtomicReferenceFieldUpdater.newUpdater(OffHeapHashOrderedMap.class, Slab.class, "slab");
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import bes.bench.collections.InsertOnlyOrderedMap.BiFunction;
+
+public class OffHeapHashOrderedMapTest
+{
+
+    private static final BiFunction<Long, Long, Long> SUM = new BiFunction<Long, Long, Long>()
+    {
+        public Long apply(Long a, Long b)
+        {
+            return a + b;
+        }
+    };
+
+    @Test
+    public void testUpdates()
+    {
+        OffHeapHashOrderedMap<Long, Long> map = new OffHeapHashOrderedMap<>(Serializer.LONG, Serializer.LONG);
+        Assert.assertFalse(map.replace(1L, 1L, 2L));
+        Assert.assertNull(map.computeIfPresent(1L, new BiFunction<Long, Long, Long>()
+        {
+            public Long apply(Long key, Long value)
+            {
+                throw new AssertionError();
+            }
+        }));
+        Assert.assertEquals(Long.valueOf(5), map.merge(1L, 5L, SUM));
+        Assert.assertEquals(Long.valueOf(12), map.merge(1L, 7L, SUM));
+        Assert.assertFalse(map.replace(1L, 5L, 6L));
+        Assert.assertTrue(map.replace(1L, 12L, 6L));
+        Assert.assertEquals(Long.valueOf(16), map.computeIfPresent(1L, new BiFunction<Long, Long, Long>()
+        {
+            public Long apply(Long key, Long value)
+            {
+                return key + value + 9;
+            }
+        }));
+        Assert.assertEquals(Long.valueOf(16), map.get(1L));
+        Assert.assertEquals(1, map.size());
+        map.clear();
+    }
+
+    // descendingRange must return exactly the entries of range, in reverse, including keys that share a hash
+    @Test
+    public void testDescendingRange()
+    {
+        Random random = new Random(0);
+        for (int size : new int[] { 0, 1, 100, 10000 })
+        {
+            OffHeapHashOrderedMap<Long, Long> map = new OffHeapHashOrderedMap<>(Serializer.LONG, Serializer.LONG);
+            List<Long> keys = new ArrayList<>();
+            for (int i = 0 ; i < size ; i++)
+            {
+                // a Long's hashCode() is the xor of its halves, so a key with equal halves collides with zero
+                long key = random.nextInt(4) == 0 ? (long) random.nextInt(8) * 0x100000001L : random.nextLong();
+                map.putIfAbsent(key, key);
+                keys.add(key);
+            }
+            for (int i = 0 ; i < 100 ; i++)
+            {
+                Long lb = keys.isEmpty() || random.nextInt(4) == 0 ? null : keys.get(random.nextInt(keys.size()));
+                Long ub = keys.isEmpty() || random.nextInt(4) == 0 ? null : keys.get(random.nextInt(keys.size()));
+                List<Long> expect = new ArrayList<>();
+                for (Map.Entry<Long, Long> e : map.range(lb, ub))
+                    expect.add(e.getKey());
+                Collections.reverse(expect);
+                List<Long> actual = new ArrayList<>();
+                for (Map.Entry<Long, Long> e : map.descendingRange(lb, ub))
+                {
+                    Assert.assertEquals(e.getKey(), e.getValue());
+                    actual.add(e.getKey());
+                }
+                Assert.assertEquals(expect, actual);
+            }
+            map.clear();
+        }
+    }
+
+    // every increment merged concurrently into a shared set of keys must be reflected in their final values
+    @Test
+    public void testConcurrentMerge() throws InterruptedException
+    {
+        final OffHeapHashOrderedMap<Long, Long> map = new OffHeapHashOrderedMap<>(Serializer.LONG, Serializer.LONG);
+        final int threads = 4, keys = 1000, perThread = 100000;
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0 ; t < threads ; t++)
+        {
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    for (int i = 0 ; i < perThread ; i++)
+                        map.merge((long) (i % keys), 1L, SUM);
+                }
+            });
+            thread.start();
+            running.add(thread);
+        }
+        for (Thread thread : running)
+            thread.join();
+
+        Assert.assertEquals(keys, map.size());
+        for (long key = 0 ; key < keys ; key++)
+            Assert.assertEquals(Long.valueOf(threads * perThread / keys), map.get(key));
+        Assert.assertTrue(map.valid());
+        map.clear();
+    }
+
+    // threads racing to replace an exhausted slab must not each allocate a region; a node of two longs takes 48 bytes,
+    // and each slab wastes at most one node's worth at its end
+    @Test
+    public void testConcurrentSlabReplacement() throws InterruptedException
+    {
+        final OffHeapHashOrderedMap<Long, Long> map = new OffHeapHashOrderedMap<>(Serializer.LONG, Serializer.LONG);
+        final int threads = 8, perThread = 200000;
+        List<Thread> running = new ArrayList<>();
+        for (int t = 0 ; t < threads ; t++)
+        {
+            final long offset = t;
+            Thread thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    // distinct keys, with their hashes spread over the whole hash space
+                    for (long i = 0 ; i < perThread ; i++)
+                        map.putIfAbsent((i * threads + offset) * 0x9E3779B97F4A7C15L, i);
+                }
+            });
+            thread.start();
+            running.add(thread);
+        }
+        for (Thread thread : running)
+            thread.join();
+
+        Assert.assertEquals(threads * perThread, map.size());
+        long slabSize = 1 << 20;
+        long slabs = 1 + (48L * threads * perThread) / (slabSize - 48);
+        Assert.assertTrue(map.offHeapSize() + " > " + slabs * slabSize, map.offHeapSize() <= slabs * slabSize);
+        Assert.assertTrue(map.valid());
+        map.clear();
+    }
+
+    // with assertions enabled, as they are under surefire, clear() checks nothing else is using the map
+    @Test
+    public void testClearWhileInUse()
+    {
+        final OffHeapHashOrderedMap<Long, Long> map = new OffHeapHashOrderedMap<>(Serializer.LONG, Serializer.LONG);
+        for (long i = 0 ; i < 100 ; i++)
+            map.putIfAbsent(i, i);
+        try
+        {
+            map.computeIfPresent(1L, new BiFunction<Long, Long, Long>()
+            {
+                public Long apply(Long key, Long value)
+                {
+                    map.clear();
+                    return value;
+                }
+            });
+            Assert.fail("clear() during an operation should fail an assertion");
+        }
+        catch (AssertionError e)
+        {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("clear() called while 1 operations"));
+        }
+
+        // the failed clear() left the map intact, but a clear() must invalidate any iterator still in use
+        Assert.assertEquals(Long.valueOf(1), map.get(1L));
+        Iterator<Map.Entry<Long, Long>> iter = map.range(null, null).iterator();
+        iter.next();
+        map.clear();
+        try
+        {
+            iter.hasNext();
+            Assert.fail("an iterator used after clear() should fail an assertion");
+        }
+        catch (AssertionError e)
+        {
+            Assert.assertEquals("iterator used after clear()", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,317 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * <p>A {@link NonBlockingHashOrderedMap} split by hash into a power of two number of partitions, each an independent
+ * NonBlockingHashOrderedMap covering an equal contiguous slice of the signed hash space, with its own list head,
+ * size counter and index. Each partition scales its slice up to the whole hash space when indexing, so that its
+ * index is as effective as that of an unpartitioned map of the same size.
+ *
+ * <p>Since each partition expects only its share of the entries and of the threads updating them, it sizes its
+ * size counter's stripes, its initial index and (if enabled) its count buckets in proportion to its slice, so that
+ * even with our default of several partitions per core, an empty map costs little more than an unpartitioned one.
+ *
+ * <p>Since the partitions are contiguous and in hash order, iterating them in turn yields the same order as a single
+ * map; so ranges (and the point queries) simply visit each partition they overlap, passing the bounds of the range
+ * to the partitions containing them, and no bounds to those in between.
+ *
+ * <p>The partitions share nothing, so operations on different partitions never contend, but neither are they
+ * ordered with respect to each other: a range may observe a later insert to one partition and miss an earlier insert
+ * to another, exactly as it may within a single map.
+ */
+public class PartitionedHashOrderedMap<K extends Comparable<? super K>, V> implements MutableOrderedMap<K, V>
+{
+    // a few partitions per core, so that threads inserting random keys rarely contend
+    private static final int DEFAULT_PARTITIONS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+
+    private final NonBlockingHashOrderedMap<K, V>[] partitions;
+    // the partition of a hash is given by its top partitionBits bits (once the sign bit is flipped)
+    private final int partitionBits;
+
+    public PartitionedHashOrderedMap()
+    {
+        this(DEFAULT_PARTITIONS);
+    }
+
+    public PartitionedHashOrderedMap(int partitionCount)
+    {
+        this(partitionCount, false);
+    }
+
+    // if counts is true, each partition counts its entries as by NonBlockingHashOrderedMap(boolean, boolean), so that
+    // count() need not walk every entry in the range
+    public PartitionedHashOrderedMap(int partitionCount, boolean counts)
+    {
+        if (partitionCount < 1 || Integer.bitCount(partitionCount) != 1)
+            throw new IllegalArgumentException("partitionCount must be a positive power of two");
+        partitionBits = Integer.numberOfTrailingZeros(partitionCount);
+        partitions = new NonBlockingHashOrderedMap[partitionCount];
+        // the width of each partition's slice of the hash space is 2^(64-partitionBits)
+        long width = partitionBits == 0 ? 0 : 1L << (64 - partitionBits);
+        for (int i = 0 ; i < partitionCount ; i++)
+            partitions[i] = new NonBlockingHashOrderedMap<>(Long.MIN_VALUE + i * width, partitionBits, counts);
+    }
+
+    private int partitionIndex(long hash)
+    {
+        // shifting in two steps lets us shift away all 64 bits when we have only one partition
+        return (int) (((hash ^ Long.MIN_VALUE) >>> 1) >>> (63 - partitionBits));
+    }
+
+    private NonBlockingHashOrderedMap<K, V> partition(K key)
+    {
+        return partitions[partitionIndex(NonBlockingHashOrderedMap.hash(key))];
+    }
+
+    // the partition containing the bound, or the first (if lower) or last (if upper) partition when unbounded
+    private int first(K lb)
+    {
+        return lb == null ? 0 : partitionIndex(NonBlockingHashOrderedMap.hash(lb));
+    }
+
+    private int last(K ub)
+    {
+        return ub == null ? partitions.length - 1 : partitionIndex(NonBlockingHashOrderedMap.hash(ub));
+    }
+
+    public V get(K key)
+    {
+        return partition(key).get(key);
+    }
+
+    public V putIfAbsent(K key, V value)
+    {
+        return partition(key).putIfAbsent(key, value);
+    }
+
+    // splits the input into runs of keys belonging to the same partition, so sorted input is inserted with
+    // one call per partition
+    public int putAllSorted(K[] keys, V[] values, int offset, int count)
+    {
+        int inserted = 0;
+        for (int i = offset, end = offset + count ; i < end ; )
+        {
+            int partition = partitionIndex(NonBlockingHashOrderedMap.hash(keys[i]));
+            int runEnd = i + 1;
+            while (runEnd < end && partitionIndex(NonBlockingHashOrderedMap.hash(keys[runEnd])) == partition)
+                runEnd++;
+            inserted += partitions[partition].putAllSorted(keys, values, i, runEnd - i);
+            i = runEnd;
+        }
+        return inserted;
+    }
+
+    public boolean replace(K key, V oldValue, V newValue)
+    {
+        return partition(key).replace(key, oldValue, newValue);
+    }
+
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remapping)
+    {
+        return partition(key).computeIfPresent(key, remapping);
+    }
+
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remapping)
+    {
+        return partition(key).merge(key, value, remapping);
+    }
+
+    public V remove(K key)
+    {
+        return partition(key).remove(key);
+    }
+
+    public boolean remove(K key, V value)
+    {
+        return partition(key).remove(key, value);
+    }
+
+    public Map.Entry<K, V> ceilingEntry(K key)
+    {
+        int i = first(key);
+        Map.Entry<K, V> result = partitions[i].ceilingEntry(key);
+        while (result == null && ++i < partitions.length)
+            result = partitions[i].firstEntry();
+        return result;
+    }
+
+    public Map.Entry<K, V> higherEntry(K key)
+    {
+        int i = first(key);
+        Map.Entry<K, V> result = partitions[i].higherEntry(key);
+        while (result == null && ++i < partitions.length)
+            result = partitions[i].firstEntry();
+        return result;
+    }
+
+    public Map.Entry<K, V> floorEntry(K key)
+    {
+        int i = first(key);
+        Map.Entry<K, V> result = partitions[i].floorEntry(key);
+        while (result == null && --i >= 0)
+            result = partitions[i].lastEntry();
+        return result;
+    }
+
+    public Map.Entry<K, V> lowerEntry(K key)
+    {
+        int i = first(key);
+        Map.Entry<K, V> result = partitions[i].lowerEntry(key);
+        while (result == null && --i >= 0)
+            result = partitions[i].lastEntry();
+        return result;
+    }
+
+    public Map.Entry<K, V> firstEntry()
+    {
+        Map.Entry<K, V> result = null;
+        for (int i = 0 ; result == null && i < partitions.length ; i++)
+            result = partitions[i].firstEntry();
+        return result;
+    }
+
+    public Map.Entry<K, V> lastEntry()
+    {
+        Map.Entry<K, V> result = null;
+        for (int i = partitions.length - 1 ; result == null && i >= 0 ; i--)
+            result = partitions[i].lastEntry();
+        return result;
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (NonBlockingHashOrderedMap<K, V> partition : partitions)
+            size += partition.size();
+        return size;
+    }
+
+    // bounds are always inclusive
+    public Iterable<Map.Entry<K, V>> range(final K lb, final K ub)
+    {
+        final int first = first(lb), last = last(ub);
+        return new Iterable<Map.Entry<K, V>>()
+        {
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                return new StitchedIterator(first, last, 1)
+                {
+                    Iterator<Map.Entry<K, V>> iterator(int i)
+                    {
+                        return partitions[i].range(i == first ? lb : null, i == last ? ub : null).iterator();
+                    }
+                };
+            }
+        };
+    }
+
+    // bounds are always inclusive; iterates from ub down to lb
+    public Iterable<Map.Entry<K, V>> descendingRange(final K lb, final K ub)
+    {
+        final int first = first(lb), last = last(ub);
+        return new Iterable<Map.Entry<K, V>>()
+        {
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                return new StitchedIterator(last, first, -1)
+                {
+                    Iterator<Map.Entry<K, V>> iterator(int i)
+                    {
+                        return partitions[i].descendingRange(i == first ? lb : null, i == last ? ub : null).iterator();
+                    }
+                };
+            }
+        };
+    }
+
+    // iterates each of the partitions from start to end (inclusive) in turn, in the direction given by step
+    private abstract class StitchedIterator implements Iterator<Map.Entry<K, V>>
+    {
+        final int end, step;
+        int next;
+        Iterator<Map.Entry<K, V>> current;
+
+        StitchedIterator(int start, int end, int step)
+        {
+            this.end = end;
+            this.step = step;
+            this.next = start;
+        }
+
+        abstract Iterator<Map.Entry<K, V>> iterator(int partition);
+
+        public boolean hasNext()
+        {
+            while (current == null || !current.hasNext())
+            {
+                // an empty range, if the bounds are out of order
+                if ((end - next) * step < 0)
+                    return false;
+                current = iterator(next);
+                next += step;
+            }
+            return true;
+        }
+
+        public Map.Entry<K, V> next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public void truncate(K lb, K ub)
+    {
+        int first = first(lb), last = last(ub);
+        for (int i = first ; i <= last ; i++)
+            partitions[i].truncate(i == first ? lb : null, i == last ? ub : null);
+    }
+
+    public int count(K lb, K ub)
+    {
+        int first = first(lb), last = last(ub), count = 0;
+        for (int i = first ; i <= last ; i++)
+            count += partitions[i].count(i == first ? lb : null, i == last ? ub : null);
+        return count;
+    }
+
+    public void clear()
+    {
+        for (NonBlockingHashOrderedMap<K, V> partition : partitions)
+            partition.clear();
+    }
+
+    public boolean valid()
+    {
+        for (NonBlockingHashOrderedMap<K, V> partition : partitions)
+            if (!partition.valid())
+                return false;
+        return true;
+    }
+}
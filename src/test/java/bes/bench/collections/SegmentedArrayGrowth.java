@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Compares a ConcurrentSegmentedArray (SEGMENTED) with an AtomicReferenceArray that grows by copying itself into one
+ * twice its length (COPY), and with a single AtomicReferenceArray allocated at its final length up front (ARRAY):
+ * fill grows an empty array to size slots, writing each in turn; get and compareAndSet address a random slot of a
+ * full array, shared by every thread.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class SegmentedArrayGrowth
+{
+
+    static enum Type
+    {
+        SEGMENTED, COPY, ARRAY
+    }
+
+    private static final Object VALUE = new Object();
+
+    @Param({"SEGMENTED", "COPY", "ARRAY"})
+    private String type;
+
+    @Param({"65536", "4194304"})
+    private int size;
+
+    @Param({"10", "18"})
+    private int segmentShift;
+
+    private Type t;
+    private ConcurrentSegmentedArray<Object> segmented;
+    private AtomicReferenceArray<Object> array;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        t = Type.valueOf(type);
+        switch (t)
+        {
+            case SEGMENTED:
+                segmented = fillSegmented();
+                break;
+            case COPY:
+                array = fillCopy();
+                break;
+            case ARRAY:
+                array = fillArray();
+                break;
+        }
+        System.gc();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown()
+    {
+        segmented = null;
+        array = null;
+    }
+
+    @Benchmark
+    public Object fill()
+    {
+        switch (t)
+        {
+            case SEGMENTED:
+                return fillSegmented();
+            case COPY:
+                return fillCopy();
+            case ARRAY:
+                return fillArray();
+        }
+        throw new IllegalStateException();
+    }
+
+    @Benchmark
+    public Object get()
+    {
+        int index = ThreadLocalRandom.current().nextInt(size);
+        return t == Type.SEGMENTED ? segmented.get(index) : array.get(index);
+    }
+
+    @Benchmark
+    public boolean compareAndSet()
+    {
+        int index = ThreadLocalRandom.current().nextInt(size);
+        return t == Type.SEGMENTED ? segmented.compareAndSet(index, VALUE, VALUE) : array.compareAndSet(index, VALUE, VALUE);
+    }
+
+    private ConcurrentSegmentedArray<Object> fillSegmented()
+    {
+        ConcurrentSegmentedArray<Object> result = new ConcurrentSegmentedArray<>(segmentShift);
+        for (int i = 0 ; i < size ; i++)
+            result.set(i, VALUE);
+        return result;
+    }
+
+    // AtomicReferenceArray offers no bulk copy, so we copy element by element, as any grower must
+    private AtomicReferenceArray<Object> fillCopy()
+    {
+        AtomicReferenceArray<Object> result = new AtomicReferenceArray<>(16);
+        for (int i = 0 ; i < size ; i++)
+        {
+            if (i == result.length())
+            {
+                AtomicReferenceArray<Object> grown = new AtomicReferenceArray<>(i * 2);
+                for (int j = 0 ; j < i ; j++)
+                    grown.lazySet(j, result.get(j));
+                result = grown;
+            }
+            result.set(i, VALUE);
+        }
+        return result;
+    }
+
+    private AtomicReferenceArray<Object> fillArray()
+    {
+        AtomicReferenceArray<Object> result = new AtomicReferenceArray<>(size);
+        for (int i = 0 ; i < size ; i++)
+            result.set(i, VALUE);
+        return result;
+    }
+
+    public static void main(String[] args) throws RunnerException, InterruptedException
+    {
+        boolean scaling = false;
+        List<String> vmArgs = new ArrayList<>();
+        Map<String, Integer> jmhParams = new HashMap<String, Integer>();
+        jmhParams.put("forks", 1);
+        jmhParams.put("threads", 1);
+        jmhParams.put("warmups", 5);
+        jmhParams.put("warmupLength", 1);
+        jmhParams.put("measurements", 5);
+        jmhParams.put("measurementLength", 2);
+        Map<String, String[]> benchParams = new LinkedHashMap<String, String[]>();
+        benchParams.put("type", new String[] { "SEGMENTED", "COPY", "ARRAY" });
+        benchParams.put("size", new String[] { "65536", "4194304" });
+        benchParams.put("segmentShift", new String[] { "10", "18" });
+        for (String arg : args)
+        {
+            if (arg.equals("-scaling"))
+            {
+                // run at every power of two thread count up to threads
+                scaling = true;
+                continue;
+            }
+            if (arg.startsWith("-"))
+            {
+                vmArgs.add(arg);
+                continue;
+            }
+            String[] split = arg.split("=");
+            if (split.length != 2)
+                throw new IllegalArgumentException(arg + " malformed");
+            if (jmhParams.containsKey(split[0]))
+                jmhParams.put(split[0], Integer.parseInt(split[1]));
+            else if (benchParams.containsKey(split[0]))
+                benchParams.put(split[0], split[1].split(","));
+            else
+                throw new IllegalArgumentException(arg + " unknown property");
+        }
+
+        if (vmArgs.isEmpty())
+            vmArgs.add("-Xmx2G");
+
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(".*SegmentedArrayGrowth.*")
+            .forks(jmhParams.get("forks"))
+            .warmupIterations(jmhParams.get("warmups"))
+            .warmupTime(TimeValue.seconds(jmhParams.get("warmupLength")))
+            .measurementIterations(jmhParams.get("measurements"))
+            .measurementTime(TimeValue.seconds(jmhParams.get("measurementLength")))
+            .jvmArgs("-dsa", "-da", "-server")
+            .jvmArgsAppend(vmArgs.toArray(new String[0]));
+
+        System.out.println("Running with:");
+        System.out.println(jmhParams);
+        for (Map.Entry<String, String[]> e : benchParams.entrySet())
+        {
+            System.out.println(e.getKey() + ": " + Arrays.toString(e.getValue()));
+            builder.param(e.getKey(), e.getValue());
+        }
+
+        int maxThreads = jmhParams.get("threads");
+        for (int threads = scaling ? 1 : maxThreads ; ; threads = Math.min(maxThreads, threads * 2))
+        {
+            new Runner(builder.threads(threads).build()).run();
+            if (threads == maxThreads)
+                break;
+        }
+    }
+}
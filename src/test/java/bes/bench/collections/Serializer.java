@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import static bes.bench.collections.AtomicReferenceArrayUpdater.unsafe;
+
+/**
+ * Reads and writes values to raw memory, addressed in the same way as {@link sun.misc.Unsafe}: either an offset into
+ * an on-heap object (such as a byte[]), or an absolute address if base is null
+ */
+public interface Serializer<T>
+{
+
+    public int serializedSize(T value);
+    public void serialize(T value, Object base, long offset);
+    public T deserialize(Object base, long offset, int size);
+
+    public static final Serializer<Long> LONG = new Serializer<Long>()
+    {
+        public int serializedSize(Long value)
+        {
+            return 8;
+        }
+
+        public void serialize(Long value, Object base, long offset)
+        {
+            unsafe.putLong(base, offset, value);
+        }
+
+        public Long deserialize(Object base, long offset, int size)
+        {
+            return unsafe.getLong(base, offset);
+        }
+    };
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package bes.bench.collections;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A counter split into a number of cells, each on its own cache line, so that concurrent updates from different
+ * threads rarely contend. Each thread always updates the same cell, chosen by its id, and the total is only
+ * computed on demand, by summing every cell.
+ *
+ * Much like java.util.concurrent.atomic.LongAdder, except that we do not adapt the number of cells to contention,
+ * and an update returns the new value of the cell it modified, so that the caller can cheaply decide when
+ * it is worth computing the total.
+ */
+final class StripedCounter
+{
+    // the number of ints in a cache line; we only use the first int of each line
+    private static final int PADDING = 16;
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+
+    // the number of stripes we use, a power of two no greater than STRIPES
+    private final int stripes;
+    // we leave a line unused at either end, so that we don't share a line with any other object
+    private final AtomicIntegerArray cells;
+
+    StripedCounter()
+    {
+        this(STRIPES);
+    }
+
+    // a counter with fewer stripes, for use where several counters share the threads updating them, so that together
+    // they have about as many stripes as one counter would; each thread still always updates the same stripe
+    StripedCounter(int stripes)
+    {
+        if (stripes < 1 || stripes > STRIPES || Integer.bitCount(stripes) != 1)
+            throw new IllegalArgumentException("stripes must be a power of two no greater than " + STRIPES);
+        this.stripes = stripes;
+        this.cells = new AtomicIntegerArray((stripes + 2) * PADDING);
+    }
+
+    // the number of stripes a counter has by default
+    static int stripes()
+    {
+        return STRIPES;
+    }
+
+    // the number of stripes this counter has
+    int stripeCount()
+    {
+        return stripes;
+    }
+
+    // returns the new value of the cell that was modified, which is only indicative of the total
+    int add(int delta)
+    {
+        return cells.addAndGet(cell(), delta);
+    }
+
+    int sum()
+    {
+        int sum = 0;
+        for (int i = 1 ; i <= stripes ; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    // not atomic with respect to concurrent updates
+    void reset()
+    {
+        for (int i = 1 ; i <= stripes ; i++)
+            cells.set(i * PADDING, 0);
+    }
+
+    private int cell()
+    {
+        return (1 + (stripe() & (stripes - 1))) * PADDING;
+    }
+
+    // the stripe the current thread always updates, in the range [0..stripes())
+    static int stripe()
+    {
+        // spread consecutive thread ids over the cells
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return (h >>> 16) & (STRIPES - 1);
+    }
+}